@@ -0,0 +1,75 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import opencl.CLContext;
+import programs.PrimitivesProgram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class PrimitivesBenchmark {
+    @Param({"100000", "1000000", "10000000", "100000000"})
+    public int size;
+
+    private int values[];
+    private CLContext context;
+    private PrimitivesProgram program;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        values = new Random(42).ints(size).toArray();
+        context = new CLContext(VecAddBenchmark.selectDevice());
+        program = new PrimitivesProgram(context);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        program.close();
+        context.close();
+    }
+
+    @Benchmark
+    public int streamSum() {
+        return IntStream.of(values).parallel().sum();
+    }
+
+    @Benchmark
+    public int openclSum() {
+        return program.sum(values);
+    }
+
+    @Benchmark
+    public int[] parallelSort() {
+        int sorted[] = values.clone();
+        Arrays.parallelSort(sorted);
+        return sorted;
+    }
+
+    @Benchmark
+    public int[] openclSort() {
+        int sorted[] = values.clone();
+        program.sort(sorted);
+        return sorted;
+    }
+}
@@ -0,0 +1,144 @@
+package bench;
+
+import static org.lwjgl.opencl.CL10.CL_MAP_READ;
+import static org.lwjgl.opencl.CL10.CL_MAP_WRITE;
+import static org.lwjgl.opencl.CL10.CL_MEM_READ_ONLY;
+import static org.lwjgl.opencl.CL10.CL_MEM_WRITE_ONLY;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import opencl.CLContext;
+import opencl.CLDevice;
+import opencl.CLEnum;
+import opencl.CLIntBuffer;
+import opencl.CLPlatform;
+import programs.VecAddProgram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class VecAddBenchmark {
+    @Param({"1000", "10000", "100000", "1000000", "10000000", "100000000"})
+    public int size;
+
+    private int a[];
+    private int b[];
+    private CLContext context;
+    private VecAddProgram program;
+    private CLIntBuffer aMapped;
+    private CLIntBuffer bMapped;
+    private CLIntBuffer cMapped;
+
+    /**
+     * Picks the device named by the {@code clenum.device} property: "gpu",
+     * "cpu" or a substring of the device name. Falls back to the first device
+     * found, which on GPU-less machines is a CPU runtime such as POCL.
+     */
+    static CLDevice selectDevice() {
+        String wanted = System.getProperty("clenum.device", "gpu");
+        CLDevice fallback = null;
+
+        for (CLPlatform platform : CLEnum.getPlatforms()) {
+            for (CLDevice device : CLEnum.getDevices(platform)) {
+                boolean matches = wanted.equalsIgnoreCase("gpu") ? device.isGPU()
+                        : wanted.equalsIgnoreCase("cpu") ? device.isCPU()
+                        : device.getName().toLowerCase().contains(wanted.toLowerCase());
+                if (matches) {
+                    return device;
+                }
+                if (fallback == null) {
+                    fallback = device;
+                }
+            }
+        }
+
+        if (fallback == null) {
+            throw new IllegalStateException("No OpenCL device found.");
+        }
+        return fallback;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Random rand = new Random(42);
+        a = rand.ints(size, 0, 500).toArray();
+        b = rand.ints(size, 0, 500).toArray();
+
+        context = new CLContext(selectDevice());
+        program = new VecAddProgram(context);
+        aMapped = program.createIntBuffer(CL_MEM_READ_ONLY, size);
+        bMapped = program.createIntBuffer(CL_MEM_READ_ONLY, size);
+        cMapped = program.createIntBuffer(CL_MEM_WRITE_ONLY, size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        aMapped.close();
+        bMapped.close();
+        cMapped.close();
+        program.close();
+        context.close();
+    }
+
+    @Benchmark
+    public int[] scalarLoop() {
+        int c[] = new int[size];
+        for (int i = 0; i < size; i++) {
+            c[i] = a[i] + b[i];
+        }
+        return c;
+    }
+
+    @Benchmark
+    public int[] parallelStream() {
+        return IntStream.range(0, size).parallel().map(i -> a[i] + b[i]).toArray();
+    }
+
+    /** The blocking path with the buffer pool emptied after every call, i.e. as before pooling. */
+    @Benchmark
+    public int[] openclBlocking() {
+        int c[] = program.vadd(a, b);
+        context.getBufferPool().clear();
+        return c;
+    }
+
+    @Benchmark
+    public int[] openclPooled() {
+        return program.vadd(a, b);
+    }
+
+    @Benchmark
+    public int[] openclMapped() {
+        aMapped.map(CL_MAP_WRITE).put(a);
+        bMapped.map(CL_MAP_WRITE).put(b);
+        program.vadd(aMapped, bMapped, cMapped);
+
+        int c[] = new int[size];
+        cMapped.map(CL_MAP_READ).get(c);
+        return c;
+    }
+
+    @Benchmark
+    public int[] openclAsync() {
+        return program.vaddAsync(a, b).join();
+    }
+}
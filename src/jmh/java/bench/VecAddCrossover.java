@@ -0,0 +1,62 @@
+package bench;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link VecAddBenchmark} and reports, for every OpenCL variant, the
+ * smallest input size from which it beats both CPU baselines at that size
+ * and every larger one. Arguments are passed on to JMH.
+ */
+public class VecAddCrossover {
+    private static final String[] BASELINES = { "scalarLoop", "parallelStream" };
+
+    public static void main(String args[]) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(VecAddBenchmark.class.getSimpleName())
+                .jvmArgsAppend("-Xmx6g", "-Dclenum.device=" + System.getProperty("clenum.device", "gpu"))
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        // size -> variant -> average time
+        Map<Integer, Map<String, Double>> scores = new TreeMap<>();
+        for (RunResult result : results) {
+            String benchmark = result.getParams().getBenchmark();
+            String variant = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+            int size = Integer.parseInt(result.getParams().getParam("size"));
+            scores.computeIfAbsent(size, k -> new TreeMap<>()).put(variant, result.getPrimaryResult().getScore());
+        }
+
+        Map<String, Integer> crossover = new TreeMap<>();
+        for (Map.Entry<Integer, Map<String, Double>> entry : scores.entrySet()) {
+            double cpu = Double.MAX_VALUE;
+            for (String baseline : BASELINES) {
+                cpu = Math.min(cpu, entry.getValue().getOrDefault(baseline, Double.MAX_VALUE));
+            }
+
+            for (Map.Entry<String, Double> variant : entry.getValue().entrySet()) {
+                if (!variant.getKey().startsWith("opencl")) {
+                    continue;
+                }
+                if (variant.getValue() < cpu) {
+                    crossover.putIfAbsent(variant.getKey(), entry.getKey());
+                } else {
+                    crossover.put(variant.getKey(), null);
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println("Crossover sizes (OpenCL faster than the best CPU baseline from here on):");
+        crossover.forEach((variant, size) ->
+                System.out.println(String.format("  %-16s: %s", variant, size != null ? size : "never")));
+    }
+}
@@ -1,108 +1,373 @@
-import java.io.File;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import compute.ComputeRouter;
+import opencl.CLBuffer;
 import opencl.CLContext;
 import opencl.CLDevice;
+import opencl.CLDeviceSelector;
 import opencl.CLEnum;
+import opencl.CLIntBuffer;
+import opencl.CLKernel;
+import opencl.CLMappedFile;
+import opencl.CLMultiDevice;
 import opencl.CLPlatform;
-import opencl.CLProgram;
-
-import org.lwjgl.BufferUtils;
-import org.lwjgl.PointerBuffer;
+import opencl.CLProgramRegistry;
+import opencl.CLResource;
+import opencl.CLProfiler;
+import opencl.CLSourceProgram;
+import opencl.CLTaskGraph;
+import opencl.expr.CLExpr;
+import opencl.expr.CLExprEngine;
+import programs.PrimitivesProgram;
+import programs.VecAddBatcher;
+import programs.VecAddProgram;
 
 import static org.lwjgl.opencl.CL10.*;
+import static org.lwjgl.system.MemoryUtil.memAllocInt;
+import static org.lwjgl.system.MemoryUtil.memFree;
 
-class VecAddProgram extends CLProgram {
-    private long clKernelVADD;
+public class Main {
+    /** Runs on the vadd program {@code registry} built and warmed up for {@code context}. */
+    public static void demoRunVADD(CLProgramRegistry registry, CLContext context) {
+        Random rand = new Random();
+        int a[] = IntStream.range(0, 10240).map(__ -> rand.nextInt(500)).toArray();
+        int b[] = IntStream.range(0, 10240).map(__ -> rand.nextInt(500)).toArray();
+        int c_cpu[] = new int[10240];
+        for (int i = 0; i < a.length; i++) {
+            c_cpu[i] = a[i] + b[i];
+        }
 
-    VecAddProgram(CLContext context) throws Exception {
-        super(context);
+        try {
+            VecAddProgram program = registry.get("vadd", context);
+            int c_gpu[] = program.vadd(a, b);
 
-        clKernelVADD = clCreateKernel(this.program, "vadd", (IntBuffer)null);
-    }
+            if (Arrays.equals(c_cpu, c_gpu)) {
+                System.out.println("GPU vector addition succeeded");
+            } else {
+                System.out.println("GPU vector addition failed");
+            }
 
-    @Override
-    protected String getSource() {
-        try {
-            return Main.readKernelSource("add.cl");
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            boolean concurrent = IntStream.range(0, 16).parallel().allMatch(__ -> Arrays.equals(c_cpu, program.vadd(a, b)));
+            if (concurrent) {
+                System.out.println("GPU concurrent vector addition succeeded");
+            } else {
+                System.out.println("GPU concurrent vector addition failed");
+            }
+
+            try (VecAddBatcher batcher = new VecAddBatcher(program)) {
+                List<CompletableFuture<int[]>> parts = new ArrayList<>();
+                for (int offset = 0; offset < a.length; offset += 256) {
+                    int end = Math.min(offset + 256, a.length);
+                    parts.add(batcher.vadd(Arrays.copyOfRange(a, offset, end), Arrays.copyOfRange(b, offset, end)));
+                }
+
+                int c_batched[] = parts.stream().map(CompletableFuture::join).flatMapToInt(IntStream::of).toArray();
+                if (Arrays.equals(c_cpu, c_batched)) {
+                    System.out.println("GPU batched vector addition succeeded");
+                } else {
+                    System.out.println("GPU batched vector addition failed");
+                }
+            }
+
+            try (CLExprEngine engine = new CLExprEngine(context)) {
+                int c_expr[] = CLExpr.of(a).add(CLExpr.of(b)).mul(3).sub(CLExpr.of(a)).evaluate(engine);
+                if (IntStream.range(0, a.length).allMatch(i -> c_expr[i] == (a[i] + b[i]) * 3 - a[i])) {
+                    System.out.println("GPU fused expression succeeded");
+                } else {
+                    System.out.println("GPU fused expression failed");
+                }
+            }
+
+            int c_async[] = program.vaddAsync(a, b).get();
+
+            if (Arrays.equals(c_cpu, c_async)) {
+                System.out.println("GPU async vector addition succeeded");
+            } else {
+                System.out.println("GPU async vector addition failed");
+            }
+
+            ByteBuffer aStream = ByteBuffer.allocateDirect(4*a.length).order(ByteOrder.nativeOrder());
+            ByteBuffer bStream = ByteBuffer.allocateDirect(4*b.length).order(ByteOrder.nativeOrder());
+            ByteBuffer cStream = ByteBuffer.allocateDirect(4*a.length).order(ByteOrder.nativeOrder());
+            aStream.asIntBuffer().put(a);
+            bStream.asIntBuffer().put(b);
+            program.vaddStream(aStream, bStream, cStream);
+
+            int c_stream[] = new int[a.length];
+            cStream.flip();
+            cStream.asIntBuffer().get(c_stream);
+
+            if (Arrays.equals(c_cpu, c_stream)) {
+                System.out.println("GPU streamed vector addition succeeded");
+            } else {
+                System.out.println("GPU streamed vector addition failed");
+            }
+
+            Path aFile = Files.createTempFile("clenum-a", ".bin");
+            Path bFile = Files.createTempFile("clenum-b", ".bin");
+            Path cFile = Files.createTempFile("clenum-c", ".bin");
+            try {
+                try (CLMappedFile aInput = CLMappedFile.create(aFile, 4L*a.length);
+                     CLMappedFile bInput = CLMappedFile.create(bFile, 4L*b.length)) {
+                    aInput.region(0, 4*a.length).asIntBuffer().put(a);
+                    bInput.region(0, 4*b.length).asIntBuffer().put(b);
+                }
+
+                int c_file[] = new int[a.length];
+                try (CLMappedFile aInput = CLMappedFile.open(aFile);
+                     CLMappedFile bInput = CLMappedFile.open(bFile);
+                     CLMappedFile cOutput = CLMappedFile.create(cFile, 4L*a.length)) {
+                    program.vaddMapped(aInput, bInput, cOutput);
+                    cOutput.region(0, 4*a.length).asIntBuffer().get(c_file);
+                }
+
+                if (Arrays.equals(c_cpu, c_file)) {
+                    System.out.println("GPU mapped file vector addition succeeded");
+                } else {
+                    System.out.println("GPU mapped file vector addition failed");
+                }
+            } finally {
+                Files.deleteIfExists(aFile);
+                Files.deleteIfExists(bFile);
+                Files.deleteIfExists(cFile);
+            }
+
+            try (CLIntBuffer aMapped = program.createIntBuffer(CL_MEM_READ_ONLY, a.length);
+                 CLIntBuffer bMapped = program.createIntBuffer(CL_MEM_READ_ONLY, b.length);
+                 CLIntBuffer cMapped = program.createIntBuffer(CL_MEM_WRITE_ONLY, a.length)) {
+                aMapped.map(CL_MAP_WRITE).put(a);
+                bMapped.map(CL_MAP_WRITE).put(b);
+                program.vadd(aMapped, bMapped, cMapped);
+
+                int c_mapped[] = new int[a.length];
+                cMapped.map(CL_MAP_READ).get(c_mapped);
+
+                if (Arrays.equals(c_cpu, c_mapped)) {
+                    System.out.println("GPU mapped vector addition succeeded");
+                } else {
+                    System.out.println("GPU mapped vector addition failed");
+                }
+            }
+
+            if (context.getProfiler() != null) {
+                context.finish();
+                context.getProfiler().await();
+                System.out.println(context.getProfiler());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
-    public int[] vadd(int a[], int b[]) {
-        assert(a.length == b.length);
+    public static void demoRunTaskGraph(CLDevice device) {
+        Random rand = new Random();
+        int n = 1 << 16;
+        IntBuffer a = memAllocInt(n);
+        IntBuffer b = memAllocInt(n);
+        IntBuffer d = memAllocInt(n);
+        IntBuffer z = memAllocInt(n);
+        for (int i = 0; i < n; i++) {
+            a.put(i, rand.nextInt(500));
+            b.put(i, rand.nextInt(500));
+            d.put(i, rand.nextInt(500));
+        }
+
+        // z = (a + b) + a * d, the sum and the product running as independent branches
+        try (CLContext context = new CLContext(device);
+             CLSourceProgram program = CLSourceProgram.fromResource(context, "graph.cl")) {
+            try (CLTaskGraph graph = new CLTaskGraph(context);
+                 CLKernel add = program.borrowKernel("add");
+                 CLKernel product = program.borrowKernel("mul");
+                 CLBuffer aBuffer = context.getBufferPool().acquire(CL_MEM_READ_ONLY, 4L*n);
+                 CLBuffer bBuffer = context.getBufferPool().acquire(CL_MEM_READ_ONLY, 4L*n);
+                 CLBuffer dBuffer = context.getBufferPool().acquire(CL_MEM_READ_ONLY, 4L*n);
+                 CLBuffer xBuffer = context.getBufferPool().acquire(CL_MEM_READ_WRITE, 4L*n);
+                 CLBuffer yBuffer = context.getBufferPool().acquire(CL_MEM_READ_WRITE, 4L*n);
+                 CLBuffer zBuffer = context.getBufferPool().acquire(CL_MEM_WRITE_ONLY, 4L*n)) {
+                CLTaskGraph.Node writeA = graph.write("write a", aBuffer, a);
+                CLTaskGraph.Node writeB = graph.write("write b", bBuffer, b);
+                CLTaskGraph.Node writeD = graph.write("write d", dBuffer, d);
+                CLTaskGraph.Node x = graph.kernel("x = a + b",
+                        add.setArg(0, aBuffer).setArg(1, bBuffer).setArg(2, xBuffer).setArg(3, n), n, writeA, writeB);
+                CLTaskGraph.Node y = graph.kernel("y = a * d",
+                        product.setArg(0, aBuffer).setArg(1, dBuffer).setArg(2, yBuffer).setArg(3, n), n, writeA, writeD);
+                // nodes copy the kernel's arguments, so add can be rebound for z
+                CLTaskGraph.Node zNode = graph.kernel("z = x + y",
+                        add.setArg(0, xBuffer).setArg(1, yBuffer).setArg(2, zBuffer).setArg(3, n), n, x, y);
+                graph.read("read z", zBuffer, z, zNode);
+
+                graph.submit().join();
+
+                boolean succeeded = IntStream.range(0, n).allMatch(i -> z.get(i) == a.get(i) + b.get(i) + a.get(i) * d.get(i));
+                System.out.println(graph);
+                System.out.println(succeeded ? "Task graph succeeded" : "Task graph failed");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            memFree(a);
+            memFree(b);
+            memFree(d);
+            memFree(z);
+        }
+    }
 
-        IntBuffer aBuffer = BufferUtils.createIntBuffer(a.length).put(a);
-        IntBuffer bBuffer = BufferUtils.createIntBuffer(b.length).put(b);
-        IntBuffer cBuffer = BufferUtils.createIntBuffer(a.length);
-        aBuffer.rewind();
-        bBuffer.rewind();
+    public static void demoRunPrimitives(CLProgramRegistry registry, CLContext context) {
+        Random rand = new Random();
+        int values[] = IntStream.range(0, 1 << 20).map(__ -> rand.nextInt(1 << 16) - (1 << 15)).toArray();
 
-        long aClBuffer = clCreateBuffer(this.context.getContextID(), CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, aBuffer, null);
-        long bClBuffer = clCreateBuffer(this.context.getContextID(), CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, bBuffer, null);
-        long cClBuffer = clCreateBuffer(this.context.getContextID(), CL_MEM_WRITE_ONLY, 4*cBuffer.capacity(), null);
-        clFinish(queue);
+        try {
+            PrimitivesProgram program = registry.get("primitives", context);
 
-        clSetKernelArg1p(this.clKernelVADD, 0, aClBuffer);
-        clSetKernelArg1p(this.clKernelVADD, 1, bClBuffer);
-        clSetKernelArg1p(this.clKernelVADD, 2, cClBuffer);
+            boolean reduced = program.sum(values) == IntStream.of(values).sum()
+                    && program.min(values) == IntStream.of(values).min().getAsInt()
+                    && program.max(values) == IntStream.of(values).max().getAsInt();
+            System.out.println(reduced ? "GPU reduction succeeded" : "GPU reduction failed");
 
-        PointerBuffer globalSizeBuffer = BufferUtils.createPointerBuffer(1);
-        globalSizeBuffer.put(a.length).flip();
+            int scan_cpu[] = new int[values.length];
+            for (int i = 1; i < values.length; i++) {
+                scan_cpu[i] = scan_cpu[i - 1] + values[i - 1];
+            }
+            System.out.println(Arrays.equals(scan_cpu, program.exclusiveScan(values)) ? "GPU prefix scan succeeded" : "GPU prefix scan failed");
 
-        clEnqueueNDRangeKernel(queue, clKernelVADD, 1, null, globalSizeBuffer, null, null, null);
-        clEnqueueReadBuffer(queue, cClBuffer, true, 0, cBuffer, null, null);
-        clFinish(queue);
+            int sparse[] = IntStream.of(values).map(v -> v % 3 == 0 ? 0 : v).toArray();
+            int compact_cpu[] = IntStream.of(sparse).filter(v -> v != 0).toArray();
+            System.out.println(Arrays.equals(compact_cpu, program.compact(sparse)) ? "GPU compaction succeeded" : "GPU compaction failed");
 
-        int c[] = new int[cBuffer.capacity()];
-        cBuffer.get(c);
+            int bytes[] = IntStream.of(values).map(v -> v & 0xff).toArray();
+            int histogram_cpu[] = new int[256];
+            for (int v : bytes) {
+                histogram_cpu[v]++;
+            }
+            System.out.println(Arrays.equals(histogram_cpu, program.histogram(bytes, 256)) ? "GPU histogram succeeded" : "GPU histogram failed");
 
-        return c;
+            int sort_cpu[] = values.clone();
+            int sort_gpu[] = values.clone();
+            Arrays.parallelSort(sort_cpu);
+            program.sort(sort_gpu);
+            System.out.println(Arrays.equals(sort_cpu, sort_gpu) ? "GPU radix sort succeeded" : "GPU radix sort failed");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
-}
 
-public class Main {
-    public static String readKernelSource(String filename) throws IOException {
-        ClassLoader classLoader = ClassLoader.getSystemClassLoader();
-        File file = new File(classLoader.getResource("kernel/" + filename).getFile());
-        return new String(Files.readAllBytes(file.toPath()));
+    public static void demoRunRouted(ComputeRouter router) {
+        Random rand = new Random();
+        for (int n = 1 << 10; n <= 1 << 22; n <<= 2) {
+            int a[] = rand.ints(n, 0, 500).toArray();
+            int b[] = rand.ints(n, 0, 500).toArray();
+            int c_cpu[] = new int[n];
+            for (int i = 0; i < n; i++) {
+                c_cpu[i] = a[i] + b[i];
+            }
+
+            boolean succeeded = true;
+            for (int run = 0; run < 4; run++) {
+                int sorted_cpu[] = a.clone();
+                int sorted[] = a.clone();
+                Arrays.sort(sorted_cpu);
+                router.sort(sorted);
+                succeeded &= Arrays.equals(c_cpu, router.vadd(a, b))
+                        && router.sum(a) == IntStream.of(a).sum()
+                        && Arrays.equals(sorted_cpu, sorted);
+            }
+            System.out.println(String.format("Routed compute on %d elements %s", n, succeeded ? "succeeded" : "failed"));
+        }
+        System.out.print(router);
     }
 
-    public static void demoRunVADD(CLDevice device) {
+    public static void demoRunSubDevices(CLDevice device) {
+        CLDevice[] subDevices;
+        try {
+            subDevices = device.partitionEqually((int)Math.max(1, device.getMaxComputeUnits() / 2));
+        } catch (RuntimeException e) {
+            System.out.println(String.format("%s cannot be partitioned: %s", device.getName(), e.getMessage()));
+            return;
+        }
+
         Random rand = new Random();
         int a[] = IntStream.range(0, 10240).map(__ -> rand.nextInt(500)).toArray();
         int b[] = IntStream.range(0, 10240).map(__ -> rand.nextInt(500)).toArray();
-        int c_cpu[] = new int[10240];
-        for (int i = 0; i < a.length; i++) {
-            c_cpu[i] = a[i] + b[i];
+        int c_cpu[] = IntStream.range(0, a.length).map(i -> a[i] + b[i]).toArray();
+
+        for (CLDevice subDevice : subDevices) {
+            try (CLContext context = new CLContext(subDevice);
+                 VecAddProgram program = new VecAddProgram(context)) {
+                boolean succeeded = Arrays.equals(c_cpu, program.vadd(a, b));
+                System.out.println(String.format("Sub-device [0x%x] with %d compute units vector addition %s",
+                        subDevice.getDeviceID(), subDevice.getMaxComputeUnits(), succeeded ? "succeeded" : "failed"));
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                subDevice.release();
+            }
         }
+    }
 
-        try {
-            CLContext context = new CLContext(device);
-            VecAddProgram program = new VecAddProgram(context);
-            int c_gpu[] = program.vadd(a, b);
+    private static IntBuffer slice(IntBuffer buffer, int offset, int length) {
+        IntBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice.slice();
+    }
 
-            if (Arrays.equals(c_cpu, c_gpu)) {
-                System.out.println("GPU vector addition succeeded");
-            } else {
-                System.out.println("GPU vector addition failed");
+    public static void demoRunMultiDeviceVADD(CLDevice[] devices) {
+        Random rand = new Random();
+        int n = 1 << 20;
+        IntBuffer a = memAllocInt(n);
+        IntBuffer b = memAllocInt(n);
+        IntBuffer c = memAllocInt(n);
+        for (int i = 0; i < n; i++) {
+            a.put(i, rand.nextInt(500));
+            b.put(i, rand.nextInt(500));
+        }
+
+        try (CLMultiDevice<VecAddProgram> group = new CLMultiDevice<>(devices, VecAddProgram::new)) {
+            for (int run = 0; run < 3; run++) {
+                group.run(n, (program, offset, length) ->
+                        program.vadd(slice(a, offset, length), slice(b, offset, length), slice(c, offset, length)));
             }
+
+            boolean succeeded = IntStream.range(0, n).allMatch(i -> c.get(i) == a.get(i) + b.get(i));
+            System.out.println(group);
+            System.out.println(succeeded ? "Multi-device vector addition succeeded" : "Multi-device vector addition failed");
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            memFree(a);
+            memFree(b);
+            memFree(c);
         }
     }
 
     public static void main(String args[]) {
         // Device to run opencl program on
-        Optional<CLDevice> gpuDevice = Optional.empty();
+        Optional<CLDevice> gpuDevice;
+        Optional<CLDevice> cpuDevice;
+        List<CLDevice> allDevices = new ArrayList<>();
+
+        CLResource.addLeakListener((resource, releaseFailure) -> {
+            System.err.println(String.format("Leaked %s, released it", resource));
+            if (resource.getAllocationSite() != null) {
+                resource.getAllocationSite().printStackTrace();
+            }
+            if (releaseFailure != null) {
+                releaseFailure.printStackTrace();
+            }
+        });
 
         CLPlatform[] platforms = CLEnum.getPlatforms();
         for (CLPlatform platform : platforms) {
@@ -115,19 +380,68 @@ public class Main {
                     .map(line -> String.format("    %s", line))
                     .reduce("", (s, n) -> s + n + "\n");
                 System.out.print(deviceString);
-
-                if (device.isGPU()) {
-                    gpuDevice = Optional.of(device);
-                }
+                allDevices.add(device);
             }
             System.out.println();
             System.out.flush();
         }
 
+        CLDeviceSelector selector = new CLDeviceSelector();
+        List<CLDevice> ranked = selector.rank(allDevices);
+        gpuDevice = ranked.stream().filter(CLDevice::isGPU).findFirst();
+        cpuDevice = ranked.stream().filter(CLDevice::isCPU).findFirst();
+        System.out.println(selector);
+
+        // Programs are built and warmed up for every device while the demos
+        // below that do not need them already run; the profiler has to be set
+        // before the warm-up creates the first queues.
+        CLContext[] contexts = allDevices.stream().map(CLContext::new).toArray(CLContext[]::new);
+        if (Boolean.getBoolean("clenum.profile")) {
+            Stream.of(contexts).forEach(context -> context.setProfiler(new CLProfiler()));
+        }
+        CLProgramRegistry registry = new CLProgramRegistry();
+        registry.register("vadd", VecAddProgram::new, program -> program.vadd(new int[1024], new int[1024]))
+                .register("primitives", PrimitivesProgram::new, program -> program.sort(new int[4096]))
+                .start(contexts);
+
         if (gpuDevice.isPresent()) {
-            demoRunVADD(gpuDevice.get());
+            demoRunTaskGraph(gpuDevice.get());
+
+            // admit requests only once the programs are ready
+            if (!registry.isReady()) {
+                System.out.println("Waiting for programs to build and warm up");
+            }
+            try {
+                registry.whenReady().join();
+            } catch (CompletionException e) {
+                System.err.println(String.format("Not every program could be built: %s", e.getCause()));
+            }
+            System.out.println(registry);
+
+            CLContext gpuContext = contexts[allDevices.indexOf(gpuDevice.get())];
+            demoRunVADD(registry, gpuContext);
+            demoRunPrimitives(registry, gpuContext);
         } else {
-            System.err.println("No OpenCL compatible GPU found.");
+            System.err.println("No OpenCL compatible GPU found, routing between Java and any other device.");
+            try (ComputeRouter router = ComputeRouter.create((backend, cause, backOff) ->
+                    System.err.println(backOff < 0 ? String.format("%s unavailable, continuing in Java: %s", backend, cause)
+                            : String.format("%s failed, continuing in Java for %d calls: %s", backend, backOff, cause)))) {
+                demoRunRouted(router);
+            }
+        }
+
+        cpuDevice.ifPresent(Main::demoRunSubDevices);
+
+        if (allDevices.size() > 1) {
+            demoRunMultiDeviceVADD(allDevices.toArray(new CLDevice[0]));
+        }
+
+        registry.close();
+        Stream.of(contexts).forEach(CLContext::close);
+
+        System.out.println(CLResource.summary());
+        if ("debug".equals(System.getProperty("clenum.leaks"))) {
+            CLResource.dumpLive(System.out);
         }
     }
 }
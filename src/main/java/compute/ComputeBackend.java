@@ -0,0 +1,21 @@
+package compute;
+
+/**
+ * Operations that can run either on an OpenCL device or on the JVM. All
+ * backends give the same results for the same inputs.
+ */
+public interface ComputeBackend extends AutoCloseable {
+    String getName();
+
+    int[] vadd(int a[], int b[]);
+
+    int sum(int[] values);
+
+    /** Sorts {@code values} into ascending order in place. */
+    void sort(int[] values);
+
+    /** Releases what the backend holds. Backends without native resources need not override this. */
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,262 @@
+package compute;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+import opencl.CLContext;
+import opencl.CLDevice;
+import opencl.CLDeviceSelector;
+
+/**
+ * Sends every call to the Java or the OpenCL backend, whichever has been
+ * faster for inputs of that size.
+ *
+ * Input sizes are grouped into power-of-two buckets per operation. Each
+ * bucket keeps a moving average of nanoseconds per element for both
+ * backends; the first calls of a bucket measure each backend once, after
+ * that the faster one is used and every {@value #PROBE_INTERVAL}th call
+ * re-measures the other, so the crossover follows load and thermal changes.
+ *
+ * Without a device everything runs in Java. A failed device call is retried
+ * in Java, and the device then sits out {@value #PROBE_INTERVAL} calls,
+ * twice as many after each further failure in a row. Only after
+ * {@value #MAX_FAILURES} failures in a row is it given up for good.
+ * Failures are reported to {@link Listener}s, not printed.
+ */
+public class ComputeRouter implements ComputeBackend {
+    public enum Operation { VADD, SUM, SORT }
+
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Called when the device backend fails, the call then being run in
+         * Java.
+         *
+         * @param backOff calls the device now sits out, or -1 if it has been
+         *        given up or could not be set up at all
+         */
+        void onFailure(String backend, Exception cause, long backOff);
+    }
+
+    private static final int BUCKETS = 32;
+    private static final int PROBE_INTERVAL = 64;
+    private static final int MAX_FAILURES = 8;
+    private static final double SMOOTHING = 0.2;
+    private static final int JAVA = 0, OPENCL = 1;
+
+    private final ComputeBackend[] backends;
+    private final AtomicLongArray nanosPerElement = new AtomicLongArray(Operation.values().length * BUCKETS * 2);
+    private final AtomicLongArray calls = new AtomicLongArray(Operation.values().length * BUCKETS);
+    private final AtomicLong routed = new AtomicLong();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile long retryAfter;
+
+    /** @param device the OpenCL backend, or null to always use {@code java} */
+    public ComputeRouter(ComputeBackend java, ComputeBackend device) {
+        this.backends = new ComputeBackend[] { java, device };
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public static ComputeRouter create() {
+        return create(null);
+    }
+
+    /**
+     * Routes between a {@link JavaBackend} and an {@link OpenCLBackend} on the
+     * device ranked fastest by {@link CLDeviceSelector}. Falls back to Java
+     * alone when no device can be used.
+     *
+     * @param listener added before the device is set up, so it also hears of
+     *        a backend that could not be created, or null
+     */
+    public static ComputeRouter create(Listener listener) {
+        CLDevice chosen = null;
+        try {
+            chosen = new CLDeviceSelector().select().orElse(null);
+        } catch (RuntimeException | LinkageError e) {
+            // no OpenCL runtime installed
+        }
+
+        ComputeBackend device = null;
+        Exception unavailable = null;
+        if (chosen != null) {
+            CLContext context = null;
+            try {
+                context = new CLContext(chosen);
+                device = new OpenCLBackend(context);
+            } catch (Exception e) {
+                if (context != null) {
+                    context.close();
+                }
+                unavailable = e;
+            }
+        }
+
+        ComputeRouter router = new ComputeRouter(new JavaBackend(), device);
+        if (listener != null) {
+            router.addListener(listener);
+        }
+        if (unavailable != null) {
+            router.failed(String.format("OpenCL [%s]", chosen.getName()), unavailable, -1);
+        }
+        return router;
+    }
+
+    @Override
+    public String getName() {
+        return hasDevice() ? String.format("Router [%s, %s]", backends[JAVA].getName(), backends[OPENCL].getName())
+                : String.format("Router [%s]", backends[JAVA].getName());
+    }
+
+    /** Returns whether the device is in use, possibly sitting out a back-off after a failure. */
+    public boolean hasDevice() {
+        return backends[OPENCL] != null && failures.get() < MAX_FAILURES;
+    }
+
+    @Override
+    public int[] vadd(int a[], int b[]) {
+        return call(Operation.VADD, a.length, backend -> backend.vadd(a, b));
+    }
+
+    @Override
+    public int sum(int[] values) {
+        return call(Operation.SUM, values.length, backend -> backend.sum(values));
+    }
+
+    @Override
+    public void sort(int[] values) {
+        // a failed device call may leave the array partly written, so sort a copy
+        call(Operation.SORT, values.length, backend -> {
+            if (backend == backends[JAVA]) {
+                backend.sort(values);
+            } else {
+                int[] sorted = values.clone();
+                backend.sort(sorted);
+                System.arraycopy(sorted, 0, values, 0, sorted.length);
+            }
+            return null;
+        });
+    }
+
+    /** Closes both backends, releasing the OpenCL context if there is one. */
+    @Override
+    public void close() {
+        for (ComputeBackend backend : backends) {
+            if (backend != null) {
+                backend.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the smallest input size from which OpenCL has measured faster
+     * than Java in every bucket, or -1 if it has not yet won any bucket.
+     */
+    public long getCrossover(Operation operation) {
+        long crossover = -1;
+        for (int bucket = BUCKETS - 1; bucket >= 0; bucket--) {
+            double java = cost(operation, bucket, JAVA);
+            double device = cost(operation, bucket, OPENCL);
+            if (java == 0 || device == 0) {
+                continue;
+            }
+            if (device >= java) {
+                break;
+            }
+            crossover = bucket == 0 ? 0 : 1L << (bucket - 1);
+        }
+        return crossover;
+    }
+
+    private interface Call<T> {
+        T apply(ComputeBackend backend);
+    }
+
+    private <T> T call(Operation operation, int n, Call<T> call) {
+        int bucket = 32 - Integer.numberOfLeadingZeros(n);
+        int choice = choose(operation, bucket, routed.incrementAndGet());
+
+        if (choice == OPENCL) {
+            try {
+                T result = timed(operation, bucket, OPENCL, n, () -> call.apply(backends[OPENCL]));
+                failures.set(0);
+                return result;
+            } catch (RuntimeException e) {
+                int failed = failures.incrementAndGet();
+                long backOff = -1;
+                if (failed < MAX_FAILURES) {
+                    backOff = (long)PROBE_INTERVAL << (failed - 1);
+                    retryAfter = routed.get() + backOff;
+                }
+                failed(backends[OPENCL].getName(), e, backOff);
+            }
+        }
+        return timed(operation, bucket, JAVA, n, () -> call.apply(backends[JAVA]));
+    }
+
+    private void failed(String backend, Exception cause, long backOff) {
+        for (Listener listener : listeners) {
+            listener.onFailure(backend, cause, backOff);
+        }
+    }
+
+    private int choose(Operation operation, int bucket, long call) {
+        if (!hasDevice() || call <= retryAfter) {
+            return JAVA;
+        }
+
+        double java = cost(operation, bucket, JAVA);
+        double device = cost(operation, bucket, OPENCL);
+        if (java == 0) {
+            return JAVA;
+        }
+        if (device == 0) {
+            return OPENCL;
+        }
+
+        int preferred = device < java ? OPENCL : JAVA;
+        long bucketCall = calls.incrementAndGet(operation.ordinal() * BUCKETS + bucket);
+        return bucketCall % PROBE_INTERVAL == 0 ? 1 - preferred : preferred;
+    }
+
+    private <T> T timed(Operation operation, int bucket, int backend, int n, Supplier<T> call) {
+        long start = System.nanoTime();
+        T result = call.get();
+        double sample = (double)(System.nanoTime() - start) / Math.max(n, 1);
+
+        int index = (operation.ordinal() * BUCKETS + bucket) * 2 + backend;
+        long previous, updated;
+        do {
+            previous = nanosPerElement.get(index);
+            double average = Double.longBitsToDouble(previous);
+            updated = Double.doubleToLongBits(average == 0 ? sample : average + SMOOTHING * (sample - average));
+        } while (!nanosPerElement.compareAndSet(index, previous, updated));
+
+        return result;
+    }
+
+    /** Returns the averaged nanoseconds per element, or 0 if not yet measured. */
+    private double cost(Operation operation, int bucket, int backend) {
+        return Double.longBitsToDouble(nanosPerElement.get((operation.ordinal() * BUCKETS + bucket) * 2 + backend));
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(getName()).append("\n");
+        for (Operation operation : Operation.values()) {
+            long crossover = getCrossover(operation);
+            sb.append(String.format("  %s: %s\n", operation, crossover < 0 ? "Java" : "OpenCL from " + crossover + " elements"));
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,117 @@
+package compute;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Pure Java backend. Work is split over a ForkJoin pool down to chunks of
+ * {@value #SPLIT} elements, each handled by a plain counted loop that the JIT
+ * compiles to SIMD instructions.
+ */
+public class JavaBackend implements ComputeBackend {
+    private static final int SPLIT = 1 << 16;
+
+    private final ForkJoinPool pool;
+
+    public JavaBackend() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public JavaBackend(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public String getName() {
+        return String.format("Java (%d threads)", pool.getParallelism());
+    }
+
+    @Override
+    public int[] vadd(int a[], int b[]) {
+        assert(a.length == b.length);
+
+        int c[] = new int[a.length];
+        if (a.length <= SPLIT) {
+            add(a, b, c, 0, a.length);
+        } else {
+            pool.invoke(new AddTask(a, b, c, 0, a.length));
+        }
+        return c;
+    }
+
+    @Override
+    public int sum(int[] values) {
+        return values.length <= SPLIT ? sum(values, 0, values.length) : pool.invoke(new SumTask(values, 0, values.length));
+    }
+
+    @Override
+    public void sort(int[] values) {
+        Arrays.parallelSort(values);
+    }
+
+    private static void add(int a[], int b[], int c[], int from, int to) {
+        for (int i = from; i < to; i++) {
+            c[i] = a[i] + b[i];
+        }
+    }
+
+    private static int sum(int[] values, int from, int to) {
+        int sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    private static class AddTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int a[], b[], c[];
+        private final int from, to;
+
+        AddTask(int a[], int b[], int c[], int from, int to) {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SPLIT) {
+                add(a, b, c, from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new AddTask(a, b, c, from, mid), new AddTask(a, b, c, mid, to));
+            }
+        }
+    }
+
+    private static class SumTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] values;
+        private final int from, to;
+
+        SumTask(int[] values, int from, int to) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from <= SPLIT) {
+                return sum(values, from, to);
+            }
+
+            int mid = (from + to) >>> 1;
+            SumTask right = new SumTask(values, mid, to);
+            right.fork();
+            return new SumTask(values, from, mid).compute() + right.join();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package compute;
+
+import opencl.CLContext;
+import programs.PrimitivesProgram;
+import programs.VecAddProgram;
+
+public class OpenCLBackend implements ComputeBackend {
+    private final CLContext context;
+    private final VecAddProgram vecAdd;
+    private final PrimitivesProgram primitives;
+
+    /** Takes over {@code context}, which stays open for the caller should a program fail to build. */
+    public OpenCLBackend(CLContext context) throws Exception {
+        this.context = context;
+        this.vecAdd = new VecAddProgram(context);
+        try {
+            this.primitives = new PrimitivesProgram(context);
+        } catch (Exception | Error e) {
+            vecAdd.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return String.format("OpenCL (%s)", context.getDevice().getName());
+    }
+
+    @Override
+    public int[] vadd(int a[], int b[]) {
+        return vecAdd.vadd(a, b);
+    }
+
+    @Override
+    public int sum(int[] values) {
+        return primitives.sum(values);
+    }
+
+    @Override
+    public void sort(int[] values) {
+        primitives.sort(values);
+    }
+
+    /** Releases both programs and the context. */
+    @Override
+    public void close() {
+        vecAdd.close();
+        primitives.close();
+        context.close();
+    }
+
+    public CLContext getContext() {
+        return context;
+    }
+}
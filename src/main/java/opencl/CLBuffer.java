@@ -0,0 +1,75 @@
+package opencl;
+
+import java.nio.ByteBuffer;
+
+public class CLBuffer implements AutoCloseable {
+    private final CLBufferPool pool;
+    private final long buffer;
+    private final long flags;
+    private final long size;
+    private final CLResource resource;
+    private final ByteBuffer host;
+    long lastUsed;
+
+    CLBuffer(CLBufferPool pool, long buffer, long flags, long size) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.flags = flags;
+        this.size = size;
+        this.resource = pool.track(this, buffer, size);
+        this.host = null;
+    }
+
+    /**
+     * An unpooled buffer created over {@code host} memory, such as a mapped
+     * file region, which is kept reachable for as long as the buffer.
+     */
+    CLBuffer(CLContext context, long buffer, long flags, ByteBuffer host) {
+        this.pool = null;
+        this.buffer = buffer;
+        this.flags = flags;
+        this.size = host.remaining();
+        this.resource = CLResource.track(this, CLResource.Kind.MEMORY, buffer, size, context.getContextID(), context.getDevice().getDeviceID());
+        this.host = host;
+    }
+
+    public long getBufferID() {
+        return this.buffer;
+    }
+
+    public long getFlags() {
+        return this.flags;
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    /** Releases the memory object itself, for the pool once it drops the buffer. */
+    void free() {
+        resource.close();
+    }
+
+    /** Returns the host memory of a buffer created over it, or null for a pooled buffer. */
+    public ByteBuffer getHostBuffer() {
+        return this.host;
+    }
+
+    /**
+     * Returns the buffer to the pool it was borrowed from, or releases an
+     * unpooled one. A buffer that is dropped without closing is released once
+     * collected, see {@link CLResource}.
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.release(this);
+        } else {
+            free();
+        }
+    }
+
+    public String toString() {
+        return String.format("Buffer [0x%x] %d bytes", buffer, size);
+    }
+}
@@ -0,0 +1,134 @@
+package opencl;
+
+import static org.lwjgl.opencl.CL10.clCreateBuffer;
+import static org.lwjgl.opencl.InfoUtil.checkCLError;
+import static org.lwjgl.system.MemoryStack.stackPush;
+
+import java.nio.IntBuffer;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Pool of device buffers for a single context.
+ *
+ * Buffers are grouped by their creation flags and a size class, so a request
+ * for n bytes is served by any idle buffer of the same flags whose size class
+ * covers n. Size classes are powers of two up to 1 MB and quarter steps
+ * between powers of two above that, so large requests waste at most a quarter
+ * of their size rather than up to half. No class exceeds the device's
+ * {@code CL_DEVICE_MAX_MEM_ALLOC_SIZE}. Idle buffers are kept until the pooled
+ * total exceeds {@link #getMaxPooledBytes()}, at which point the least
+ * recently used ones are released.
+ */
+public class CLBufferPool {
+    private static final int MIN_SIZE_CLASS = 12; // 4 KB
+    private static final int FINE_SIZE_CLASS = 20; // 1 MB
+    private static final int FINE_STEPS = 2; // log2 of the classes per power of two above FINE_SIZE_CLASS
+
+    private final CLContext context;
+    private final long maxAllocSize;
+    private final Map<Long, Deque<CLBuffer>> idle = new ConcurrentHashMap<>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private volatile long maxPooledBytes;
+
+    CLBufferPool(CLContext context, long maxPooledBytes) {
+        this.context = context;
+        this.maxPooledBytes = maxPooledBytes;
+        this.maxAllocSize = context.getDevice().getMaxMemAllocSize();
+    }
+
+    public CLBuffer acquire(long flags, long bytes) {
+        long size = sizeClass(bytes);
+        Deque<CLBuffer> buffers = idle.get(key(flags, size));
+        CLBuffer buffer = buffers != null ? buffers.pollFirst() : null;
+        if (buffer != null) {
+            pooledBytes.addAndGet(-buffer.getSize());
+            return buffer;
+        }
+
+        try (MemoryStack stack = stackPush()) {
+            IntBuffer errcode = stack.mallocInt(1);
+            long mem = clCreateBuffer(context.getContextID(), flags, size, errcode);
+            checkCLError(errcode);
+            return new CLBuffer(this, mem, flags, size);
+        }
+    }
+
+    void release(CLBuffer buffer) {
+        buffer.lastUsed = System.nanoTime();
+        idle.computeIfAbsent(key(buffer.getFlags(), sizeClass(buffer.getSize())), k -> new ConcurrentLinkedDeque<>())
+            .offerFirst(buffer);
+        if (pooledBytes.addAndGet(buffer.getSize()) > maxPooledBytes) {
+            evict(maxPooledBytes);
+        }
+    }
+
+    CLResource track(CLBuffer owner, long mem, long size) {
+        return CLResource.track(owner, CLResource.Kind.MEMORY, mem, size, context.getContextID(), context.getDevice().getDeviceID());
+    }
+
+    /** Releases idle buffers, oldest first, until at most {@code limit} bytes stay pooled. */
+    public void evict(long limit) {
+        while (pooledBytes.get() > limit) {
+            Deque<CLBuffer> oldest = null;
+            long oldestTime = Long.MAX_VALUE;
+            for (Deque<CLBuffer> buffers : idle.values()) {
+                CLBuffer candidate = buffers.peekLast();
+                if (candidate != null && candidate.lastUsed < oldestTime) {
+                    oldest = buffers;
+                    oldestTime = candidate.lastUsed;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+
+            CLBuffer victim = oldest.pollLast();
+            if (victim != null) {
+                pooledBytes.addAndGet(-victim.getSize());
+                victim.free();
+            }
+        }
+    }
+
+    /** Releases every idle buffer. Buffers currently borrowed are unaffected. */
+    public void clear() {
+        evict(0);
+    }
+
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    public void setMaxPooledBytes(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        evict(maxPooledBytes);
+    }
+
+    /** Returns the size buffers serving {@code bytes} are created with. A class size maps to itself. */
+    private long sizeClass(long bytes) {
+        long size = Math.max(bytes, 1L << MIN_SIZE_CLASS);
+        int log2 = 64 - Long.numberOfLeadingZeros(size - 1);
+        long step = log2 > FINE_SIZE_CLASS ? 1L << (log2 - 1 - FINE_STEPS) : 1L << log2;
+        size = (size + step - 1) & -step;
+        // requests above the limit keep their class and fail in clCreateBuffer
+        return bytes <= maxAllocSize ? Math.min(size, maxAllocSize) : size;
+    }
+
+    private static long key(long flags, long size) {
+        return (flags << 48) | size;
+    }
+
+    public String toString() {
+        return String.format("Buffer Pool [%d/%d bytes idle]", pooledBytes.get(), maxPooledBytes);
+    }
+}
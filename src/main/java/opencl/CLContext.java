@@ -1,29 +1,136 @@
 package opencl;
 
 import static org.lwjgl.opencl.CL10.CL_CONTEXT_PLATFORM;
+import static org.lwjgl.opencl.CL10.CL_QUEUE_PROFILING_ENABLE;
+import static org.lwjgl.opencl.CL10.clCreateCommandQueue;
 import static org.lwjgl.opencl.CL10.clCreateContext;
+import static org.lwjgl.opencl.CL10.clFinish;
+import static org.lwjgl.opencl.InfoUtil.checkCLError;
 import static org.lwjgl.system.MemoryStack.stackPush;
 import static org.lwjgl.system.MemoryUtil.NULL;
 
+import java.nio.IntBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 
-public class CLContext {
+/**
+ * OpenCL context on a single device, with its buffer pool and command queues.
+ * Closing it releases every queue it created, the pooled buffers and the
+ * context; see {@link CLResource} for objects that outlive that.
+ */
+public class CLContext implements AutoCloseable {
     private final long context;
+    private final CLResource resource;
+    private final Map<Long, CLResource> commandQueues = new ConcurrentHashMap<>();
     private final CLDevice device;
+    private final CLBufferPool bufferPool;
+    private final AtomicLongArray queues;
+    private volatile CLProfiler profiler;
 
     public CLContext(CLDevice device) {
+        this(device, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+    }
+
+    /** @param queueStripes number of command queues shared by the threads submitting through {@link #getQueue()} */
+    public CLContext(CLDevice device, int queueStripes) {
         this.device = device;
+        this.queues = new AtomicLongArray(queueStripes);
 
         try (MemoryStack stack = stackPush()) {
             PointerBuffer ctxProps = stack.mallocPointer(3);
             ctxProps.put(0, CL_CONTEXT_PLATFORM)
                     .put(1, device.getPlatformID())
                     .put(2, 0);
-            context = clCreateContext(ctxProps, device.getDeviceID(), null, NULL, null);
+            IntBuffer errcode = stack.mallocInt(1);
+            context = clCreateContext(ctxProps, device.getDeviceID(), null, NULL, errcode);
+            checkCLError(errcode);
+        }
+        this.resource = CLResource.track(this, CLResource.Kind.CONTEXT, context, 0, context, device.getDeviceID());
+
+        this.bufferPool = new CLBufferPool(this, device.getGlobalMemSize() / 4);
+    }
+
+    /** Creates a command queue owned by this context. Release it with {@link #releaseCommandQueue(long)}, or let {@link #close()} do so. */
+    public long createCommandQueue(long properties) {
+        if (profiler != null) {
+            properties |= CL_QUEUE_PROFILING_ENABLE;
+        }
+
+        try (MemoryStack stack = stackPush()) {
+            IntBuffer errcode = stack.mallocInt(1);
+            long queue = clCreateCommandQueue(context, device.getDeviceID(), properties, errcode);
+            checkCLError(errcode);
+            commandQueues.put(queue, CLResource.track(this, CLResource.Kind.QUEUE, queue, 0, context, device.getDeviceID()));
+            return queue;
+        }
+    }
+
+    /**
+     * Returns the command queue for the calling thread. Threads are spread
+     * over a fixed set of lazily created queues by thread id, so concurrent
+     * submitters rarely share a queue and never take a lock to get one.
+     *
+     * Programs enqueue every command on this queue, so the commands of one
+     * thread run in order while those of different threads are unordered.
+     * Objects that keep device state between calls, such as
+     * {@link CLIntBuffer}, are instead bound to the queue they were created
+     * on.
+     */
+    public long getQueue() {
+        int stripe = (int)(Thread.currentThread().getId() % queues.length());
+        long queue = queues.get(stripe);
+        if (queue == NULL) {
+            long created = createCommandQueue(0);
+            if (queues.compareAndSet(stripe, NULL, created)) {
+                queue = created;
+            } else {
+                releaseCommandQueue(created);
+                queue = queues.get(stripe);
+            }
+        }
+        return queue;
+    }
+
+    /** Blocks until every command on every queue of this context, striped or not, has completed. */
+    public void finish() {
+        for (Long queue : commandQueues.keySet()) {
+            checkCLError(clFinish(queue));
         }
     }
 
+    public void releaseCommandQueue(long queue) {
+        CLResource resource = commandQueues.remove(queue);
+        if (resource != null) {
+            resource.close();
+        }
+    }
+
+    /** Returns the bytes of device memory currently allocated in this context, pooled buffers included. */
+    public long getAllocatedBytes() {
+        return CLResource.getAllocatedBytes(this);
+    }
+
+    /**
+     * Releases the pooled buffers, every queue created through this context
+     * and the context itself. Programs and borrowed buffers should be closed
+     * first.
+     */
+    @Override
+    public void close() {
+        bufferPool.clear();
+        for (int i = 0; i < queues.length(); i++) {
+            queues.set(i, NULL);
+        }
+        for (Long queue : commandQueues.keySet()) {
+            releaseCommandQueue(queue);
+        }
+        resource.close();
+    }
+
     public long getContextID() {
         return context;
     }
@@ -32,6 +139,28 @@ public class CLContext {
         return this.device;
     }
 
+    public CLBufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    public CLProfiler getProfiler() {
+        return this.profiler;
+    }
+
+    /**
+     * Enables profiling of commands enqueued on this context. Queues are
+     * created with profiling enabled or not, so this must be called before
+     * the first queue is created, i.e. before creating programs.
+     *
+     * @throws IllegalStateException if the context already has queues
+     */
+    public synchronized void setProfiler(CLProfiler profiler) {
+        if (!commandQueues.isEmpty()) {
+            throw new IllegalStateException("setProfiler must be called before the context creates command queues");
+        }
+        this.profiler = profiler;
+    }
+
     public String toString() {
         StringBuilder sb = new StringBuilder();
 
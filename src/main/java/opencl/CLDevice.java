@@ -2,66 +2,248 @@ package opencl;
 
 import static org.lwjgl.opencl.CL10.CL_DEVICE_GLOBAL_MEM_CACHE_SIZE;
 import static org.lwjgl.opencl.CL10.CL_DEVICE_GLOBAL_MEM_SIZE;
+import static org.lwjgl.opencl.CL10.CL_DEVICE_LOCAL_MEM_SIZE;
 import static org.lwjgl.opencl.CL10.CL_DEVICE_MAX_CLOCK_FREQUENCY;
 import static org.lwjgl.opencl.CL10.CL_DEVICE_MAX_COMPUTE_UNITS;
+import static org.lwjgl.opencl.CL10.CL_DEVICE_MAX_MEM_ALLOC_SIZE;
+import static org.lwjgl.opencl.CL10.CL_DEVICE_MAX_WORK_GROUP_SIZE;
 import static org.lwjgl.opencl.CL10.CL_DEVICE_NAME;
 import static org.lwjgl.opencl.CL10.CL_DEVICE_PLATFORM;
+import static org.lwjgl.opencl.CL10.CL_DEVICE_QUEUE_PROPERTIES;
 import static org.lwjgl.opencl.CL10.CL_DEVICE_TYPE;
+import static org.lwjgl.opencl.CL10.CL_DEVICE_TYPE_CPU;
 import static org.lwjgl.opencl.CL10.CL_DEVICE_TYPE_GPU;
 import static org.lwjgl.opencl.CL10.CL_DEVICE_VERSION;
 import static org.lwjgl.opencl.CL10.CL_DRIVER_VERSION;
+import static org.lwjgl.opencl.CL10.CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE;
+import static org.lwjgl.opencl.CL12.CL_DEVICE_PARTITION_BY_AFFINITY_DOMAIN;
+import static org.lwjgl.opencl.CL12.CL_DEVICE_PARTITION_BY_COUNTS;
+import static org.lwjgl.opencl.CL12.CL_DEVICE_PARTITION_BY_COUNTS_LIST_END;
+import static org.lwjgl.opencl.CL12.CL_DEVICE_PARTITION_EQUALLY;
+import static org.lwjgl.opencl.CL12.CL_DEVICE_PARTITION_MAX_SUB_DEVICES;
+import static org.lwjgl.opencl.CL12.clCreateSubDevices;
+import static org.lwjgl.opencl.CL12.clReleaseDevice;
+import static org.lwjgl.opencl.InfoUtil.checkCLError;
 import static org.lwjgl.opencl.InfoUtil.getDeviceInfoInt;
 import static org.lwjgl.opencl.InfoUtil.getDeviceInfoLong;
+import static org.lwjgl.opencl.InfoUtil.getDeviceInfoPointer;
 import static org.lwjgl.opencl.InfoUtil.getDeviceInfoStringUTF8;
+import static org.lwjgl.system.MemoryStack.stackPush;
+
+import java.nio.IntBuffer;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
 
 public class CLDevice {
+    /** CL_DEVICE_PREFERRED_VECTOR_WIDTH_INT, misnamed CL_DEVICE_PREFERRED_VECTOR_WIDTH_ in LWJGL 3.1. */
+    private static final int CL_DEVICE_PREFERRED_VECTOR_WIDTH_INT = 0x1008;
+
     private final long device_id;
-    private final long platform_id;
-    private final String DEVICE_NAME;
-    private final String DEVICE_VERSION;
-    private final String DRIVER_VERSION;
-    private final long DEVICE_MAX_COMPUTE_UNITS;
-    private final long DEVICE_GLOBAL_MEM_SIZE;
-    private final long DEVICE_GLOBAL_MEM_CACHE_SIZE;
-    private final long DEVICE_MAX_CLOCK_FREQUENCY;
-    private final long DEVICE_TYPE;
+    private final CLDevice parent;
+    private final CLLazy<Long> platform_id;
+    private final CLLazy<String> DEVICE_NAME;
+    private final CLLazy<String> DEVICE_VERSION;
+    private final CLLazy<String> DRIVER_VERSION;
+    private final CLLazy<Long> DEVICE_MAX_COMPUTE_UNITS;
+    private final CLLazy<Long> DEVICE_GLOBAL_MEM_SIZE;
+    private final CLLazy<Long> DEVICE_MAX_MEM_ALLOC_SIZE;
+    private final CLLazy<Long> DEVICE_GLOBAL_MEM_CACHE_SIZE;
+    private final CLLazy<Long> DEVICE_MAX_CLOCK_FREQUENCY;
+    private final CLLazy<Long> DEVICE_TYPE;
+    private final CLLazy<Long> DEVICE_LOCAL_MEM_SIZE;
+    private final CLLazy<Long> DEVICE_MAX_WORK_GROUP_SIZE;
+    private final CLLazy<Integer> DEVICE_PREFERRED_VECTOR_WIDTH_INT;
+    private final CLLazy<Long> DEVICE_QUEUE_PROPERTIES;
 
+    /**
+     * Wraps a device id. Properties are queried on first use and then
+     * remembered, so devices kept by {@link CLEnum} cost one query per
+     * property for the life of the process.
+     */
     public CLDevice(long device) {
+        this(device, null);
+    }
+
+    private CLDevice(long device, CLDevice parent) {
         this.device_id = device;
-        this.platform_id = getDeviceInfoLong(device, CL_DEVICE_PLATFORM);
-        this.DEVICE_NAME = getDeviceInfoStringUTF8(device, CL_DEVICE_NAME);
-        this.DEVICE_VERSION = getDeviceInfoStringUTF8(device, CL_DEVICE_VERSION);
-        this.DRIVER_VERSION = getDeviceInfoStringUTF8(device, CL_DRIVER_VERSION);
-        this.DEVICE_MAX_COMPUTE_UNITS = getDeviceInfoInt(device, CL_DEVICE_MAX_COMPUTE_UNITS) & 0xffffffffL;
-        this.DEVICE_GLOBAL_MEM_SIZE = getDeviceInfoLong(device, CL_DEVICE_GLOBAL_MEM_SIZE);
-        this.DEVICE_GLOBAL_MEM_CACHE_SIZE = getDeviceInfoLong(device, CL_DEVICE_GLOBAL_MEM_CACHE_SIZE);
-        this.DEVICE_MAX_CLOCK_FREQUENCY = getDeviceInfoInt(device, CL_DEVICE_MAX_CLOCK_FREQUENCY) & 0xffffffffL;
-        this.DEVICE_TYPE = getDeviceInfoLong(device, CL_DEVICE_TYPE);
+        this.parent = parent;
+        this.platform_id = new CLLazy<>(() -> getDeviceInfoLong(device, CL_DEVICE_PLATFORM));
+        this.DEVICE_NAME = new CLLazy<>(() -> getDeviceInfoStringUTF8(device, CL_DEVICE_NAME));
+        this.DEVICE_VERSION = new CLLazy<>(() -> getDeviceInfoStringUTF8(device, CL_DEVICE_VERSION));
+        this.DRIVER_VERSION = new CLLazy<>(() -> getDeviceInfoStringUTF8(device, CL_DRIVER_VERSION));
+        this.DEVICE_MAX_COMPUTE_UNITS = new CLLazy<>(() -> getDeviceInfoInt(device, CL_DEVICE_MAX_COMPUTE_UNITS) & 0xffffffffL);
+        this.DEVICE_GLOBAL_MEM_SIZE = new CLLazy<>(() -> getDeviceInfoLong(device, CL_DEVICE_GLOBAL_MEM_SIZE));
+        this.DEVICE_MAX_MEM_ALLOC_SIZE = new CLLazy<>(() -> getDeviceInfoLong(device, CL_DEVICE_MAX_MEM_ALLOC_SIZE));
+        this.DEVICE_GLOBAL_MEM_CACHE_SIZE = new CLLazy<>(() -> getDeviceInfoLong(device, CL_DEVICE_GLOBAL_MEM_CACHE_SIZE));
+        this.DEVICE_MAX_CLOCK_FREQUENCY = new CLLazy<>(() -> getDeviceInfoInt(device, CL_DEVICE_MAX_CLOCK_FREQUENCY) & 0xffffffffL);
+        this.DEVICE_TYPE = new CLLazy<>(() -> getDeviceInfoLong(device, CL_DEVICE_TYPE));
+        this.DEVICE_LOCAL_MEM_SIZE = new CLLazy<>(() -> getDeviceInfoLong(device, CL_DEVICE_LOCAL_MEM_SIZE));
+        this.DEVICE_MAX_WORK_GROUP_SIZE = new CLLazy<>(() -> getDeviceInfoPointer(device, CL_DEVICE_MAX_WORK_GROUP_SIZE));
+        this.DEVICE_PREFERRED_VECTOR_WIDTH_INT = new CLLazy<>(() -> getDeviceInfoInt(device, CL_DEVICE_PREFERRED_VECTOR_WIDTH_INT));
+        this.DEVICE_QUEUE_PROPERTIES = new CLLazy<>(() -> getDeviceInfoLong(device, CL_DEVICE_QUEUE_PROPERTIES));
     }
 
     public boolean isGPU() {
-        return (this.DEVICE_TYPE & CL_DEVICE_TYPE_GPU) != 0;
+        return (this.DEVICE_TYPE.get() & CL_DEVICE_TYPE_GPU) != 0;
+    }
+
+    public boolean isCPU() {
+        return (this.DEVICE_TYPE.get() & CL_DEVICE_TYPE_CPU) != 0;
+    }
+
+    public boolean supportsOutOfOrderQueue() {
+        return (this.DEVICE_QUEUE_PROPERTIES.get() & CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE) != 0;
+    }
+
+    /**
+     * Splits the device into as many sub-devices of {@code computeUnits}
+     * compute units each as fit. Each sub-device can back its own
+     * {@link CLContext}, which keeps work on a CPU device to a subset of its
+     * cores. Requires OpenCL 1.2.
+     */
+    public CLDevice[] partitionEqually(int computeUnits) {
+        return partition(CL_DEVICE_PARTITION_EQUALLY, computeUnits, 0);
+    }
+
+    /** Splits the device into one sub-device per entry of {@code counts}, with that many compute units. */
+    public CLDevice[] partitionByCounts(int... counts) {
+        long[] properties = new long[counts.length + 3];
+        properties[0] = CL_DEVICE_PARTITION_BY_COUNTS;
+        for (int i = 0; i < counts.length; i++) {
+            properties[i + 1] = counts[i];
+        }
+        properties[counts.length + 1] = CL_DEVICE_PARTITION_BY_COUNTS_LIST_END;
+        properties[counts.length + 2] = 0;
+        return partition(properties);
+    }
+
+    /**
+     * Splits the device along a shared cache or memory level, one of the
+     * {@code CL_DEVICE_AFFINITY_DOMAIN_*} constants, e.g. one sub-device per
+     * NUMA node so that each keeps its memory local.
+     */
+    public CLDevice[] partitionByAffinityDomain(long domain) {
+        return partition(CL_DEVICE_PARTITION_BY_AFFINITY_DOMAIN, domain, 0);
+    }
+
+    private CLDevice[] partition(long... properties) {
+        if (!supportsPartitioning()) {
+            throw new UnsupportedOperationException(String.format("%s (%s) cannot be partitioned", DEVICE_NAME.get(), DEVICE_VERSION.get()));
+        }
+
+        try (MemoryStack stack = stackPush()) {
+            PointerBuffer props = stack.pointers(properties);
+            IntBuffer count = stack.mallocInt(1);
+            checkCLError(clCreateSubDevices(device_id, props, null, count));
+
+            PointerBuffer ids = stack.mallocPointer(count.get(0));
+            checkCLError(clCreateSubDevices(device_id, props, ids, (IntBuffer)null));
+
+            CLDevice[] devices = new CLDevice[ids.capacity()];
+            for (int i = 0; i < devices.length; i++) {
+                devices[i] = new CLDevice(ids.get(i), this);
+            }
+            return devices;
+        }
+    }
+
+    /** Returns the most sub-devices a partition may create, or 1 before OpenCL 1.2. */
+    public long getMaxSubDevices() {
+        if (!supportsPartitioning()) {
+            return 1;
+        }
+        return getDeviceInfoInt(device_id, CL_DEVICE_PARTITION_MAX_SUB_DEVICES) & 0xffffffffL;
+    }
+
+    /** Sub-devices arrived with OpenCL 1.2. */
+    private boolean supportsPartitioning() {
+        return supportsOpenCL12();
+    }
+
+    /** The version string reads "OpenCL major.minor ...". */
+    public boolean supportsOpenCL12() {
+        return DEVICE_VERSION.get().matches("OpenCL (1\\.[2-9]|[2-9]\\.).*");
+    }
+
+    /** Returns the device this one was partitioned from, or null for a root device. */
+    public CLDevice getParent() {
+        return this.parent;
+    }
+
+    /**
+     * Releases a sub-device. Contexts created on it hold their own
+     * reference, so this may be called once they exist. Root devices are not
+     * reference counted and are left alone.
+     */
+    public void release() {
+        if (parent != null) {
+            clReleaseDevice(device_id);
+        }
     }
 
     public long getPlatformID() {
-        return this.platform_id;
+        return this.platform_id.get();
     }
 
     public long getDeviceID() {
         return this.device_id;
     }
 
+    public String getName() {
+        return this.DEVICE_NAME.get();
+    }
+
+    public String getDriverVersion() {
+        return this.DRIVER_VERSION.get();
+    }
+
+    public long getMaxComputeUnits() {
+        return this.DEVICE_MAX_COMPUTE_UNITS.get();
+    }
+
+    public long getMaxClockFrequency() {
+        return this.DEVICE_MAX_CLOCK_FREQUENCY.get();
+    }
+
+    public long getGlobalMemSize() {
+        return this.DEVICE_GLOBAL_MEM_SIZE.get();
+    }
+
+    public long getMaxMemAllocSize() {
+        return this.DEVICE_MAX_MEM_ALLOC_SIZE.get();
+    }
+
+    public long getLocalMemSize() {
+        return this.DEVICE_LOCAL_MEM_SIZE.get();
+    }
+
+    public long getMaxWorkGroupSize() {
+        return this.DEVICE_MAX_WORK_GROUP_SIZE.get();
+    }
+
+    public int getPreferredVectorWidthInt() {
+        return this.DEVICE_PREFERRED_VECTOR_WIDTH_INT.get();
+    }
+
     public String toString() {
         StringBuilder sb = new StringBuilder();
 
         sb.append(String.format("Device [0x%x]\n", device_id));
-        sb.append(String.format("  Name             : %s\n", DEVICE_NAME));
-        sb.append(String.format("  Version          : %s\n", DEVICE_VERSION));
-        sb.append(String.format("  Driver Version   : %s\n", DRIVER_VERSION));
-        sb.append(String.format("  Max Compute Units: %s\n", DEVICE_MAX_COMPUTE_UNITS));
-        sb.append(String.format("  Max Memory       : %s MB\n", DEVICE_GLOBAL_MEM_SIZE / 1024 / 1024));
-        sb.append(String.format("  Max Memory Cache : %s KB\n", DEVICE_GLOBAL_MEM_CACHE_SIZE / 1024));
-        sb.append(String.format("  Max Clock Freq   : %s MHz", DEVICE_MAX_CLOCK_FREQUENCY));
+        sb.append(String.format("  Name             : %s\n", DEVICE_NAME.get()));
+        sb.append(String.format("  Version          : %s\n", DEVICE_VERSION.get()));
+        sb.append(String.format("  Driver Version   : %s\n", DRIVER_VERSION.get()));
+        sb.append(String.format("  Max Compute Units: %s\n", DEVICE_MAX_COMPUTE_UNITS.get()));
+        sb.append(String.format("  Max Memory       : %s MB\n", DEVICE_GLOBAL_MEM_SIZE.get() / 1024 / 1024));
+        sb.append(String.format("  Max Allocation   : %s MB\n", DEVICE_MAX_MEM_ALLOC_SIZE.get() / 1024 / 1024));
+        sb.append(String.format("  Max Memory Cache : %s KB\n", DEVICE_GLOBAL_MEM_CACHE_SIZE.get() / 1024));
+        sb.append(String.format("  Max Clock Freq   : %s MHz\n", DEVICE_MAX_CLOCK_FREQUENCY.get()));
+        sb.append(String.format("  Local Memory     : %s KB\n", DEVICE_LOCAL_MEM_SIZE.get() / 1024));
+        sb.append(String.format("  Max Work Group   : %s\n", DEVICE_MAX_WORK_GROUP_SIZE.get()));
+        sb.append(String.format("  Int Vector Width : %s", DEVICE_PREFERRED_VECTOR_WIDTH_INT.get()));
+        if (parent != null) {
+            sb.append(String.format("\n  Parent Device    : [0x%x]", parent.getDeviceID()));
+        }
 
         return sb.toString();
     }
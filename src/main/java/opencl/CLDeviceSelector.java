@@ -0,0 +1,175 @@
+package opencl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Ranks devices by a short measured probe: a few million ints uploaded,
+ * put through a small arithmetic kernel and read back, which weighs host
+ * bandwidth and compute the way typical requests do. Devices that score the
+ * same, or cannot run the probe, are ordered by compute units times clock.
+ *
+ * Scores are kept in {@code devices.properties} next to the program cache,
+ * keyed by device name and driver version, so later starts skip the probe
+ * and a driver update measures again. A failed probe is only remembered
+ * until the selector is dropped, so the device is tried again on the next
+ * start.
+ */
+public class CLDeviceSelector {
+    private static final int PROBE_ELEMENTS = 1 << 22;
+    private static final int PROBE_RUNS = 3;
+    private static final String PROBE_SOURCE =
+            "__kernel void probe(__global const int *in, __global int *out, const int n) {\n" +
+            "    int i = get_global_id(0);\n" +
+            "    if (i < n) {\n" +
+            "        int v = in[i];\n" +
+            "        for (int k = 0; k < 16; k++) {\n" +
+            "            v = v * 1664525 + 1013904223;\n" +
+            "        }\n" +
+            "        out[i] = v;\n" +
+            "    }\n" +
+            "}\n";
+
+    private final Path file;
+    private final Properties scores = new Properties();
+    private final Set<String> failed = new HashSet<>();
+
+    public CLDeviceSelector() {
+        this(CLProgramCache.getDefault().getDirectory().resolve("devices.properties"));
+    }
+
+    public CLDeviceSelector(Path file) {
+        this.file = file;
+        if (Files.isRegularFile(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                scores.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                // Unreadable scores are measured again.
+            }
+        }
+    }
+
+    /** Returns the fastest of all devices, or nothing if there are none. */
+    public Optional<CLDevice> select() {
+        return rank(CLEnum.getAllDevices()).stream().findFirst();
+    }
+
+    /**
+     * Returns {@code devices} fastest first, probing those without a stored
+     * score. Every device is scored before sorting, so the comparator never
+     * runs a probe.
+     */
+    public List<CLDevice> rank(List<CLDevice> devices) {
+        Map<CLDevice, Double> probed = new IdentityHashMap<>();
+        Map<CLDevice, Long> capacity = new IdentityHashMap<>();
+        for (CLDevice device : devices) {
+            probed.put(device, getScore(device));
+            capacity.put(device, device.getMaxComputeUnits() * device.getMaxClockFrequency());
+        }
+
+        List<CLDevice> ranked = new ArrayList<>(devices);
+        ranked.sort(Comparator.<CLDevice>comparingDouble(probed::get)
+                .thenComparingLong(capacity::get)
+                .reversed());
+        return ranked;
+    }
+
+    /** Returns the probe throughput of {@code device} in elements per microsecond, 0 if the probe failed. */
+    public synchronized double getScore(CLDevice device) {
+        String key = key(device);
+        String stored = scores.getProperty(key);
+        if (stored != null) {
+            try {
+                return Double.parseDouble(stored);
+            } catch (NumberFormatException e) {
+                // fall through and measure again
+            }
+        }
+
+        if (failed.contains(key)) {
+            return 0;
+        }
+
+        double score = probe(device);
+        if (score > 0) {
+            scores.setProperty(key, Double.toString(score));
+            save();
+        } else {
+            failed.add(key);
+        }
+        return score;
+    }
+
+    /** Forgets all stored scores so that every device is probed again. */
+    public synchronized void reset() {
+        scores.clear();
+        failed.clear();
+        save();
+    }
+
+    private static String key(CLDevice device) {
+        return device.getName().trim() + " / " + device.getDriverVersion().trim();
+    }
+
+    private static double probe(CLDevice device) {
+        try (CLContext context = new CLContext(device, 1);
+             CLSourceProgram program = new CLSourceProgram(context, PROBE_SOURCE)) {
+            int in[] = new int[PROBE_ELEMENTS];
+            int out[] = new int[PROBE_ELEMENTS];
+
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run <= PROBE_RUNS; run++) {
+                long start = System.nanoTime();
+                try (CLKernel kernel = program.borrowKernel("probe")) {
+                    kernel.setArg(0, in).setOutput(1, out).setArg(2, PROBE_ELEMENTS).run(PROBE_ELEMENTS);
+                }
+                long elapsed = System.nanoTime() - start;
+                // the first run pays for kernel creation and first-launch work
+                if (run > 0) {
+                    best = Math.min(best, elapsed);
+                }
+            }
+
+            return PROBE_ELEMENTS / (best / 1000.0);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private void save() {
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), "devices", ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                scores.store(out, "clenum device probe scores, elements per microsecond");
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Keep the scores in memory only, the next start probes again.
+        }
+    }
+
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(String.format("Device Selector [%s]", file));
+        for (String key : scores.stringPropertyNames()) {
+            sb.append(String.format("\n  %-50s: %s", key, scores.getProperty(key)));
+        }
+
+        return sb.toString();
+    }
+}
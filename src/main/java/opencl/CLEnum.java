@@ -6,12 +6,53 @@ import static org.lwjgl.opencl.CL10.clGetPlatformIDs;
 import static org.lwjgl.system.MemoryStack.stackPush;
 
 import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 
+/**
+ * Process-wide inventory of platforms and devices. Each is enumerated once
+ * and the same {@link CLPlatform} and {@link CLDevice} objects, with their
+ * memoized properties, are handed out afterwards. Call {@link #refresh()}
+ * to pick up hot-plugged devices or a changed ICD setup.
+ */
 public class CLEnum {
+    private static volatile CLPlatform[] platforms;
+    private static final Map<Long, CLDevice[]> devices = new ConcurrentHashMap<>();
+
     public static CLPlatform[] getPlatforms() {
+        CLPlatform[] cached = platforms;
+        if (cached == null) {
+            cached = queryPlatforms();
+            platforms = cached;
+        }
+        return cached.clone();
+    }
+
+    public static CLDevice[] getDevices(CLPlatform platform) {
+        return devices.computeIfAbsent(platform.getPlatformID(), CLEnum::queryDevices).clone();
+    }
+
+    /** Returns the devices of every platform. */
+    public static List<CLDevice> getAllDevices() {
+        List<CLDevice> all = new ArrayList<>();
+        for (CLPlatform platform : getPlatforms()) {
+            all.addAll(Arrays.asList(getDevices(platform)));
+        }
+        return all;
+    }
+
+    public static void refresh() {
+        platforms = null;
+        devices.clear();
+    }
+
+    private static CLPlatform[] queryPlatforms() {
         try (MemoryStack stack = stackPush()) {
             IntBuffer pi = stack.mallocInt(1);
             clGetPlatformIDs(null, pi);
@@ -31,15 +72,15 @@ public class CLEnum {
         }
     }
 
-    public static CLDevice[] getDevices(CLPlatform platform) {
+    private static CLDevice[] queryDevices(long platform) {
         try (MemoryStack stack = stackPush()) {
             IntBuffer ndevices = stack.mallocInt(1);
-            clGetDeviceIDs(platform.getPlatformID(), CL_DEVICE_TYPE_ALL, null, ndevices);
+            clGetDeviceIDs(platform, CL_DEVICE_TYPE_ALL, null, ndevices);
             CLDevice[] devices = new CLDevice[ndevices.get()];
 
             if (devices.length > 0) {
                 PointerBuffer devices_buffer = stack.mallocPointer(devices.length);
-                clGetDeviceIDs(platform.getPlatformID(), CL_DEVICE_TYPE_ALL, devices_buffer, (IntBuffer)null);
+                clGetDeviceIDs(platform, CL_DEVICE_TYPE_ALL, devices_buffer, (IntBuffer)null);
 
                 for (int i = 0; i < devices_buffer.capacity(); i++) {
                     long device = devices_buffer.get(i);
@@ -0,0 +1,60 @@
+package opencl;
+
+import static org.lwjgl.opencl.CL10.CL_COMPLETE;
+import static org.lwjgl.opencl.CL10.clReleaseEvent;
+import static org.lwjgl.opencl.CL11.clSetEventCallback;
+import static org.lwjgl.opencl.InfoUtil.checkCLError;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lwjgl.opencl.CLEventCallback;
+
+/**
+ * Bridges {@code cl_event} completion to {@link CompletableFuture}.
+ *
+ * A single native callback is shared by every event; the future to complete is
+ * looked up through the callback's user data. Futures are completed on the
+ * common pool because OpenCL calls made from inside the callback itself are
+ * not allowed to block.
+ */
+public final class CLEvents {
+    private static final Map<Long, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+    private static final AtomicLong nextTag = new AtomicLong(1);
+    private static final CLEventCallback callback = CLEventCallback.create((event, status, tag) -> {
+        CompletableFuture<Void> future = pending.remove(tag);
+        clReleaseEvent(event);
+        ForkJoinPool.commonPool().execute(() -> {
+            if (status == CL_COMPLETE) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(new RuntimeException(String.format("OpenCL error [0x%X]", status)));
+            }
+        });
+    });
+
+    private CLEvents() {
+    }
+
+    /**
+     * Returns a future completed once {@code event} reaches {@code CL_COMPLETE}.
+     * Ownership of the event passes to this method; it is released after the
+     * callback fires.
+     */
+    public static CompletableFuture<Void> whenComplete(long event) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        long tag = nextTag.getAndIncrement();
+        pending.put(tag, future);
+
+        int result = clSetEventCallback(event, CL_COMPLETE, callback, tag);
+        if (result != 0) {
+            pending.remove(tag);
+            clReleaseEvent(event);
+            checkCLError(result);
+        }
+        return future;
+    }
+}
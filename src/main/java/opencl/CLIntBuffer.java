@@ -0,0 +1,96 @@
+package opencl;
+
+import static org.lwjgl.opencl.CL10.CL_MAP_READ;
+import static org.lwjgl.opencl.CL10.CL_MAP_WRITE;
+import static org.lwjgl.opencl.CL10.CL_MEM_ALLOC_HOST_PTR;
+import static org.lwjgl.opencl.CL10.clEnqueueMapBuffer;
+import static org.lwjgl.opencl.CL10.clEnqueueUnmapMemObject;
+import static org.lwjgl.opencl.InfoUtil.checkCLError;
+import static org.lwjgl.system.MemoryStack.stackPush;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Device buffer of ints allocated with {@code CL_MEM_ALLOC_HOST_PTR}.
+ *
+ * Instead of copying through an intermediate host buffer, callers map the
+ * buffer, read or fill the returned view directly and unmap it before a kernel
+ * uses it. On devices sharing memory with the host the map is free.
+ *
+ * The buffer is bound to the queue it was created with. Maps, unmaps and
+ * every kernel using the buffer must be enqueued on {@link #getQueue()}, as
+ * commands on different queues are not ordered against each other.
+ */
+public class CLIntBuffer implements AutoCloseable {
+    private final CLContext context;
+    private final CLBuffer buffer;
+    private final long queue;
+    private final int length;
+    private ByteBuffer mapped;
+
+    public CLIntBuffer(CLContext context, long queue, long flags, int length) {
+        this.context = context;
+        this.buffer = context.getBufferPool().acquire(flags | CL_MEM_ALLOC_HOST_PTR, 4L*length);
+        this.queue = queue;
+        this.length = length;
+    }
+
+    public IntBuffer map() {
+        return map(CL_MAP_READ | CL_MAP_WRITE);
+    }
+
+    public IntBuffer map(long mapFlags) {
+        if (mapped == null) {
+            try (MemoryStack stack = stackPush()) {
+                IntBuffer errcode = stack.mallocInt(1);
+                PointerBuffer profiled = CLProfiler.event(context, stack, null);
+                mapped = clEnqueueMapBuffer(queue, buffer.getBufferID(), true, mapFlags, 0, 4L*length, null, profiled, errcode, null);
+                checkCLError(errcode);
+                CLProfiler.record(context, "CLIntBuffer.map", 4L*length, profiled, null);
+            }
+        }
+        return mapped.order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    public void unmap() {
+        if (mapped != null) {
+            try (MemoryStack stack = stackPush()) {
+                PointerBuffer profiled = CLProfiler.event(context, stack, null);
+                checkCLError(clEnqueueUnmapMemObject(queue, buffer.getBufferID(), mapped, null, profiled));
+                CLProfiler.record(context, "CLIntBuffer.unmap", 4L*length, profiled, null);
+            }
+            mapped = null;
+        }
+    }
+
+    public boolean isMapped() {
+        return mapped != null;
+    }
+
+    public long getQueue() {
+        return this.queue;
+    }
+
+    public int length() {
+        return this.length;
+    }
+
+    public long getBufferID() {
+        return buffer.getBufferID();
+    }
+
+    @Override
+    public void close() {
+        unmap();
+        buffer.close();
+    }
+
+    public String toString() {
+        return String.format("Int Buffer [0x%x] %d ints%s", buffer.getBufferID(), length, mapped != null ? " (mapped)" : "");
+    }
+}
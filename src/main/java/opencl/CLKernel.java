@@ -0,0 +1,430 @@
+package opencl;
+
+import static org.lwjgl.opencl.CL10.CL_KERNEL_FUNCTION_NAME;
+import static org.lwjgl.opencl.CL10.CL_KERNEL_NUM_ARGS;
+import static org.lwjgl.opencl.CL10.CL_MEM_READ_ONLY;
+import static org.lwjgl.opencl.CL10.CL_MEM_WRITE_ONLY;
+import static org.lwjgl.opencl.CL10.CL_SUCCESS;
+import static org.lwjgl.opencl.CL10.clGetKernelInfo;
+import static org.lwjgl.opencl.CL10.clSetKernelArg;
+import static org.lwjgl.opencl.CL10.clSetKernelArg1d;
+import static org.lwjgl.opencl.CL10.clSetKernelArg1f;
+import static org.lwjgl.opencl.CL10.clSetKernelArg1i;
+import static org.lwjgl.opencl.CL10.clSetKernelArg1l;
+import static org.lwjgl.opencl.CL10.clSetKernelArg1p;
+import static org.lwjgl.opencl.CL12.CL_KERNEL_ARG_NAME;
+import static org.lwjgl.opencl.CL12.clGetKernelArgInfo;
+import static org.lwjgl.opencl.InfoUtil.checkCLError;
+import static org.lwjgl.opencl.InfoUtil.getKernelInfoStringASCII;
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.system.MemoryUtil.memASCII;
+import static org.lwjgl.system.MemoryUtil.memAllocLong;
+import static org.lwjgl.system.MemoryUtil.memFree;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * A kernel of a {@link CLProgram} with positional argument binding.
+ *
+ * Scalars and device buffers are passed straight to {@code clSetKernelArg},
+ * skipping the call when the argument already holds the same value of the
+ * same type. Java
+ * arrays and direct buffers are uploaded to buffers borrowed from the context
+ * pool for the next {@link #run(long)}, and outputs bound with
+ * {@code setOutput} are read back into the caller's array after it. Since the
+ * pool hands out the most recently returned buffer first, repeated launches
+ * of the same shape usually bind the very same {@code cl_mem} and skip the
+ * argument call too. Uploaded arguments only last for one run and have to be
+ * bound again before the next.
+ *
+ * Instances are not thread-safe, as kernel arguments are shared state.
+ * Concurrent callers each borrow their own instance with
+ * {@link CLProgram#borrowKernel(String)} and close it when done.
+ */
+public class CLKernel implements AutoCloseable {
+    private static final int UNBOUND = 0;
+    private static final int INT = 1;
+    private static final int LONG = 2;
+    private static final int FLOAT = 3;
+    private static final int DOUBLE = 4;
+    private static final int MEM = 5;
+    private static final int LOCAL = 6;
+
+    private final CLProgram program;
+    private final long kernel;
+    private final CLResource resource;
+    private final boolean borrowed;
+    private final String name;
+    private final String[] argNames;
+    private final int[] boundKind;
+    private final long[] boundValue;
+    private final CLBuffer[] transients;
+    private final boolean[] stale;
+    private final Object[] outputs;
+
+    CLKernel(CLProgram program, long kernel, boolean borrowed) {
+        this.program = program;
+        this.kernel = kernel;
+        this.resource = CLResource.track(this, CLResource.Kind.KERNEL, kernel, 0,
+                program.context.getContextID(), program.context.getDevice().getDeviceID());
+        this.borrowed = borrowed;
+        this.name = getKernelInfoStringASCII(kernel, CL_KERNEL_FUNCTION_NAME);
+
+        int numArgs;
+        try (MemoryStack stack = stackPush()) {
+            IntBuffer pi = stack.mallocInt(1);
+            checkCLError(clGetKernelInfo(kernel, CL_KERNEL_NUM_ARGS, pi, null));
+            numArgs = pi.get(0);
+        }
+
+        this.argNames = new String[numArgs];
+        this.boundKind = new int[numArgs];
+        this.boundValue = new long[numArgs];
+        this.transients = new CLBuffer[numArgs];
+        this.stale = new boolean[numArgs];
+        this.outputs = new Object[numArgs];
+        for (int i = 0; i < numArgs; i++) {
+            argNames[i] = argName(kernel, i);
+        }
+    }
+
+    /** Argument names need OpenCL 1.2 and -cl-kernel-arg-info; falls back to the position. */
+    private static String argName(long kernel, int index) {
+        try (MemoryStack stack = stackPush()) {
+            PointerBuffer pp = stack.mallocPointer(1);
+            if (clGetKernelArgInfo(kernel, index, CL_KERNEL_ARG_NAME, (ByteBuffer)null, pp) == CL_SUCCESS) {
+                int bytes = (int)pp.get(0);
+                ByteBuffer buffer = stack.malloc(bytes);
+                if (clGetKernelArgInfo(kernel, index, CL_KERNEL_ARG_NAME, buffer, null) == CL_SUCCESS) {
+                    return memASCII(buffer, bytes - 1);
+                }
+            }
+        } catch (RuntimeException | UnsatisfiedLinkError e) {
+            // Entry point missing on an OpenCL 1.1 platform.
+        }
+        return "arg" + index;
+    }
+
+    public long getKernelID() {
+        return this.kernel;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public int getNumArgs() {
+        return this.argNames.length;
+    }
+
+    public String[] getArgNames() {
+        return argNames.clone();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= argNames.length) {
+            throw new IndexOutOfBoundsException(String.format("%s has no argument %d", name, index));
+        }
+    }
+
+    /** Remembers the bound value and its type, so an int 1 and a float with the same bits are told apart. */
+    private boolean unchanged(int index, int kind, long value) {
+        checkIndex(index);
+        stale[index] = false;
+        if (boundKind[index] == kind && boundValue[index] == value) {
+            return true;
+        }
+        boundKind[index] = kind;
+        boundValue[index] = value;
+        return false;
+    }
+
+    public CLKernel setArg(int index, int value) {
+        if (!unchanged(index, INT, value)) {
+            checkCLError(clSetKernelArg1i(kernel, index, value));
+        }
+        return this;
+    }
+
+    public CLKernel setArg(int index, long value) {
+        if (!unchanged(index, LONG, value)) {
+            checkCLError(clSetKernelArg1l(kernel, index, value));
+        }
+        return this;
+    }
+
+    public CLKernel setArg(int index, float value) {
+        if (!unchanged(index, FLOAT, Float.floatToRawIntBits(value))) {
+            checkCLError(clSetKernelArg1f(kernel, index, value));
+        }
+        return this;
+    }
+
+    public CLKernel setArg(int index, double value) {
+        if (!unchanged(index, DOUBLE, Double.doubleToRawLongBits(value))) {
+            checkCLError(clSetKernelArg1d(kernel, index, value));
+        }
+        return this;
+    }
+
+    public CLKernel setArg(int index, CLBuffer buffer) {
+        return setMemArg(index, buffer.getBufferID());
+    }
+
+    /** Unmaps {@code buffer}; the kernel must then be enqueued on {@link CLIntBuffer#getQueue()}. */
+    public CLKernel setArg(int index, CLIntBuffer buffer) {
+        buffer.unmap();
+        return setMemArg(index, buffer.getBufferID());
+    }
+
+    /** Arguments bound to a kernel at one point, see {@link #snapshot()}. */
+    static final class Arguments {
+        private final int[] kinds;
+        private final long[] values;
+
+        private Arguments(int[] kinds, long[] values) {
+            this.kinds = kinds;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Copies the bound arguments, so a {@link CLTaskGraph} node can restore
+     * them while the caller goes on binding others. Every argument must be
+     * bound to a scalar, a device buffer or local memory; uploaded and output
+     * arrays are refused, as their buffers go back to the pool on the next run.
+     */
+    Arguments snapshot() {
+        for (int i = 0; i < argNames.length; i++) {
+            if (boundKind[i] == UNBOUND || stale[i]) {
+                throw new IllegalStateException(String.format("%s: %s is not bound", name, argNames[i]));
+            }
+            if (transients[i] != null) {
+                throw new IllegalStateException(String.format("%s: %s is an uploaded array, bind a CLBuffer instead", name, argNames[i]));
+            }
+        }
+        return new Arguments(boundKind.clone(), boundValue.clone());
+    }
+
+    /** Binds the arguments of {@code arguments} again, skipping those still bound. */
+    CLKernel restore(Arguments arguments) {
+        for (int i = 0; i < arguments.kinds.length; i++) {
+            long value = arguments.values[i];
+            switch (arguments.kinds[i]) {
+            case INT:
+                setArg(i, (int)value);
+                break;
+            case LONG:
+                setArg(i, value);
+                break;
+            case FLOAT:
+                setArg(i, Float.intBitsToFloat((int)value));
+                break;
+            case DOUBLE:
+                setArg(i, Double.longBitsToDouble(value));
+                break;
+            case MEM:
+                setMemArg(i, value);
+                break;
+            case LOCAL:
+                setLocalArg(i, value);
+                break;
+            }
+        }
+        return this;
+    }
+
+    /** Binds a raw {@code cl_mem} handle. */
+    public CLKernel setMemArg(int index, long buffer) {
+        if (!unchanged(index, MEM, buffer)) {
+            checkCLError(clSetKernelArg1p(kernel, index, buffer));
+        }
+        return this;
+    }
+
+    /** Reserves {@code bytes} of local memory for a {@code __local} pointer argument. */
+    public CLKernel setLocalArg(int index, long bytes) {
+        if (!unchanged(index, LOCAL, bytes)) {
+            checkCLError(clSetKernelArg(kernel, index, bytes));
+        }
+        return this;
+    }
+
+    /** Uploads {@code values} for the next {@link #run(long)}. */
+    public CLKernel setArg(int index, int[] values) {
+        CLBuffer buffer = borrow(index, CL_MEM_READ_ONLY, 4L*values.length);
+        program.enqueueWrite(program.context.getQueue(), buffer.getBufferID(), true, values, null, null);
+        return setArg(index, buffer);
+    }
+
+    /** Uploads the remaining elements of the direct buffer {@code values} for the next {@link #run(long)}. */
+    public CLKernel setArg(int index, IntBuffer values) {
+        CLBuffer buffer = borrow(index, CL_MEM_READ_ONLY, 4L*values.remaining());
+        program.enqueueWrite(program.context.getQueue(), buffer.getBufferID(), true, values, null, null);
+        return setArg(index, buffer);
+    }
+
+    public CLKernel setArg(int index, float[] values) {
+        CLBuffer buffer = borrow(index, CL_MEM_READ_ONLY, 4L*values.length);
+        program.enqueueWrite(program.context.getQueue(), buffer.getBufferID(), true, values, null, null);
+        return setArg(index, buffer);
+    }
+
+    public CLKernel setArg(int index, long[] values) {
+        CLBuffer buffer = borrow(index, CL_MEM_READ_ONLY, 8L*values.length);
+        LongBuffer staging = memAllocLong(values.length);
+        try {
+            staging.put(values).flip();
+            program.enqueueWrite(program.context.getQueue(), buffer.getBufferID(), true, staging, null, null);
+        } finally {
+            memFree(staging);
+        }
+        return setArg(index, buffer);
+    }
+
+    public CLKernel setArg(int index, double[] values) {
+        CLBuffer buffer = borrow(index, CL_MEM_READ_ONLY, 8L*values.length);
+        program.enqueueWrite(program.context.getQueue(), buffer.getBufferID(), true, values, null, null);
+        return setArg(index, buffer);
+    }
+
+    /** Binds a device buffer the size of {@code results}, read back into it by the next {@link #run(long)}. */
+    public CLKernel setOutput(int index, int[] results) {
+        return setOutput(index, results, 4L*results.length);
+    }
+
+    public CLKernel setOutput(int index, IntBuffer results) {
+        return setOutput(index, results, 4L*results.remaining());
+    }
+
+    public CLKernel setOutput(int index, float[] results) {
+        return setOutput(index, results, 4L*results.length);
+    }
+
+    public CLKernel setOutput(int index, long[] results) {
+        return setOutput(index, results, 8L*results.length);
+    }
+
+    public CLKernel setOutput(int index, double[] results) {
+        return setOutput(index, results, 8L*results.length);
+    }
+
+    private CLKernel setOutput(int index, Object results, long bytes) {
+        CLBuffer buffer = borrow(index, CL_MEM_WRITE_ONLY, bytes);
+        outputs[index] = results;
+        return setArg(index, buffer);
+    }
+
+    private CLBuffer borrow(int index, long flags, long bytes) {
+        checkIndex(index);
+        if (transients[index] != null) {
+            transients[index].close();
+        }
+        transients[index] = program.context.getBufferPool().acquire(flags, bytes);
+        return transients[index];
+    }
+
+    /**
+     * Enqueues the kernel with the current arguments on {@code queue} without
+     * waiting. Uses the tuned local size, padding the global size to it, if
+     * tuning is enabled for the kernel and has already run; otherwise the
+     * driver picks. Never tunes itself, see {@link #run(long)}. Transient
+     * buffers stay bound until the next {@link #run(long)}.
+     */
+    public void enqueue(long queue, long globalSize, PointerBuffer waitList, PointerBuffer event) {
+        checkStale();
+        long local = program.getTunedLocalSize(name);
+        program.enqueueKernel(queue, kernel, CLWorkGroupTuner.padGlobalSize(globalSize, local), local, waitList, event);
+    }
+
+    /** Like {@link #enqueue(long, long, PointerBuffer, PointerBuffer)} but with a fixed local size instead of a tuned one. */
+    public void enqueue(long queue, long globalSize, long localSize, PointerBuffer waitList, PointerBuffer event) {
+        checkStale();
+        program.enqueueKernel(queue, kernel, globalSize, localSize, waitList, event);
+    }
+
+    private void checkStale() {
+        for (int i = 0; i < stale.length; i++) {
+            if (stale[i]) {
+                throw new IllegalStateException(String.format("%s: %s was uploaded for an earlier run and must be bound again", name, argNames[i]));
+            }
+        }
+    }
+
+    /**
+     * Launches the kernel on the calling thread's queue, reads bound outputs
+     * back and returns transient buffers to the pool. If tuning is enabled
+     * for the kernel, its first large run tunes the local size first.
+     */
+    public void run(long globalSize) {
+        long queue = program.context.getQueue();
+        checkStale();
+        program.tune(queue, kernel, name, globalSize);
+        enqueue(queue, globalSize, null, null);
+
+        for (int i = 0; i < outputs.length; i++) {
+            if (outputs[i] != null) {
+                read(queue, transients[i].getBufferID(), outputs[i]);
+            }
+        }
+
+        Arrays.fill(outputs, null);
+        for (int i = 0; i < transients.length; i++) {
+            if (transients[i] != null) {
+                transients[i].close();
+                transients[i] = null;
+                stale[i] = true;
+            }
+        }
+    }
+
+    private void read(long queue, long buffer, Object output) {
+        if (output instanceof int[]) {
+            program.enqueueRead(queue, buffer, true, (int[])output, null, null);
+        } else if (output instanceof IntBuffer) {
+            program.enqueueRead(queue, buffer, true, (IntBuffer)output, null, null);
+        } else if (output instanceof float[]) {
+            program.enqueueRead(queue, buffer, true, (float[])output, null, null);
+        } else if (output instanceof double[]) {
+            program.enqueueRead(queue, buffer, true, (double[])output, null, null);
+        } else if (output instanceof long[]) {
+            long[] results = (long[])output;
+            LongBuffer staging = memAllocLong(results.length);
+            try {
+                program.enqueueRead(queue, buffer, true, staging, null, null);
+                staging.get(results);
+            } finally {
+                memFree(staging);
+            }
+        }
+    }
+
+    /** Releases the {@code cl_kernel} and any transient buffers, for the program when it is closed. */
+    void release() {
+        for (int i = 0; i < transients.length; i++) {
+            if (transients[i] != null) {
+                transients[i].close();
+                transients[i] = null;
+            }
+        }
+        resource.close();
+    }
+
+    /** Returns a borrowed kernel to its program. Does nothing for the program's shared kernels. */
+    @Override
+    public void close() {
+        if (borrowed) {
+            program.returnKernel(this);
+        }
+    }
+
+    public String toString() {
+        return String.format("Kernel [0x%x] %s(%s)", kernel, name, String.join(", ", argNames));
+    }
+}
@@ -0,0 +1,26 @@
+package opencl;
+
+import java.util.function.Supplier;
+
+/**
+ * Memoizes an info query on first use. Queries are idempotent, so racing
+ * threads may both run it and the duplicate result is simply dropped.
+ */
+final class CLLazy<T> implements Supplier<T> {
+    private final Supplier<T> query;
+    private volatile T value;
+
+    CLLazy(Supplier<T> query) {
+        this.query = query;
+    }
+
+    @Override
+    public T get() {
+        T result = value;
+        if (result == null) {
+            result = query.get();
+            value = result;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,153 @@
+package opencl;
+
+import static org.lwjgl.opencl.CL10.CL_MAP_READ;
+import static org.lwjgl.opencl.CL10.CL_MEM_USE_HOST_PTR;
+import static org.lwjgl.opencl.CL10.clCreateBuffer;
+import static org.lwjgl.opencl.CL10.clEnqueueMapBuffer;
+import static org.lwjgl.opencl.CL10.clEnqueueUnmapMemObject;
+import static org.lwjgl.opencl.InfoUtil.checkCLError;
+import static org.lwjgl.system.MemoryStack.stackPush;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * File of native-order ints mapped into memory, for inputs and outputs too
+ * large for the Java heap.
+ *
+ * The file is mapped in windows of {@value #WINDOW_BYTES} bytes, since a
+ * single mapping cannot exceed 2 GB. Windows start at page boundaries, so
+ * regions at page-aligned offsets can back {@code CL_MEM_USE_HOST_PTR}
+ * buffers with {@link #wrap(CLContext, long, int, long)} or be uploaded
+ * directly by {@link CLStreamPipeline}, never passing through the heap.
+ *
+ * The JDK unmaps the windows only once they are garbage collected; closing
+ * the file releases the channel and flushes writes.
+ */
+public class CLMappedFile implements AutoCloseable {
+    public static final long WINDOW_BYTES = 1L << 30;
+    public static final int PAGE_BYTES = 4096;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final boolean writable;
+    private final long size;
+    private final MappedByteBuffer[] windows;
+
+    private CLMappedFile(Path path, FileChannel channel, boolean writable, long size) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.writable = writable;
+        this.size = size;
+        this.windows = new MappedByteBuffer[(int)((size + WINDOW_BYTES - 1) / WINDOW_BYTES)];
+        for (int i = 0; i < windows.length; i++) {
+            long offset = i * WINDOW_BYTES;
+            windows[i] = channel.map(writable ? MapMode.READ_WRITE : MapMode.READ_ONLY, offset, Math.min(WINDOW_BYTES, size - offset));
+            windows[i].order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /** Maps an existing file for reading. */
+    public static CLMappedFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new CLMappedFile(path, channel, false, channel.size());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Creates or truncates {@code path} to {@code size} bytes and maps it for writing. */
+    public static CLMappedFile create(Path path, long size) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            return new CLMappedFile(path, channel, true, size);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * Returns up to {@code maxLength} bytes from {@code offset} as a direct
+     * buffer. The region ends early at a window boundary, so callers advance
+     * by its remaining bytes.
+     */
+    public ByteBuffer region(long offset, int maxLength) {
+        if (offset < 0 || offset >= size) {
+            throw new IndexOutOfBoundsException(String.format("offset %d outside %s", offset, this));
+        }
+
+        ByteBuffer window = windows[(int)(offset / WINDOW_BYTES)].duplicate();
+        int start = (int)(offset % WINDOW_BYTES);
+        window.position(start);
+        window.limit(start + Math.min(maxLength, window.capacity() - start));
+        return window.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Creates a {@code CL_MEM_USE_HOST_PTR} buffer over a region, see
+     * {@link #region(long, int)}. On devices sharing memory with the host the
+     * kernel reads and writes the file pages in place. Device writes become
+     * visible in the file after {@link #synchronize(CLContext, long, CLBuffer)}.
+     */
+    public CLBuffer wrap(CLContext context, long offset, int maxLength, long flags) {
+        ByteBuffer region = region(offset, maxLength);
+        try (MemoryStack stack = stackPush()) {
+            IntBuffer errcode = stack.mallocInt(1);
+            long buffer = clCreateBuffer(context.getContextID(), flags | CL_MEM_USE_HOST_PTR, region, errcode);
+            checkCLError(errcode);
+            return new CLBuffer(context, buffer, flags | CL_MEM_USE_HOST_PTR, region);
+        }
+    }
+
+    /** Maps and unmaps a wrapped buffer on {@code queue}, which the spec requires before the host sees device writes. */
+    public static void synchronize(CLContext context, long queue, CLBuffer buffer) {
+        try (MemoryStack stack = stackPush()) {
+            IntBuffer errcode = stack.mallocInt(1);
+            PointerBuffer profiled = CLProfiler.event(context, stack, null);
+            ByteBuffer mapped = clEnqueueMapBuffer(queue, buffer.getBufferID(), true, CL_MAP_READ, 0, buffer.getSize(), null, profiled, errcode, null);
+            checkCLError(errcode);
+            CLProfiler.record(context, "CLMappedFile.map", buffer.getSize(), profiled, null);
+
+            profiled = CLProfiler.event(context, stack, null);
+            checkCLError(clEnqueueUnmapMemObject(queue, buffer.getBufferID(), mapped, null, profiled));
+            CLProfiler.record(context, "CLMappedFile.unmap", buffer.getSize(), profiled, null);
+        }
+    }
+
+    /** Writes changed pages of a writable file to disk. */
+    public void force() {
+        if (writable) {
+            for (MappedByteBuffer window : windows) {
+                window.force();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    public String toString() {
+        return String.format("Mapped File [%s] %d bytes%s", path, size, writable ? " (writable)" : "");
+    }
+}
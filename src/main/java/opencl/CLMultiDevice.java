@@ -0,0 +1,155 @@
+package opencl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs one program per device and splits one-dimensional ranges across them.
+ *
+ * Every device gets its own context and program. A range is partitioned in
+ * proportion to each device's measured throughput, starting from compute
+ * units times clock until every device has been measured, and the parts run
+ * concurrently. Tasks write their part of the result at its offset, which
+ * merges the results without any further copy.
+ */
+public class CLMultiDevice<P extends CLProgram> implements AutoCloseable {
+    @FunctionalInterface
+    public interface ProgramFactory<P> {
+        P create(CLContext context) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface RangeTask<P> {
+        void run(P program, int offset, int length) throws Exception;
+    }
+
+    private static final double SMOOTHING = 0.3;
+
+    private final List<P> programs = new ArrayList<>();
+    private final double[] estimate;
+    private final double[] throughput;
+    private final ExecutorService executor;
+
+    /** Creates a context and a program for every device, closing those already made if one fails. */
+    public CLMultiDevice(CLDevice[] devices, ProgramFactory<P> factory) throws Exception {
+        this.estimate = new double[devices.length];
+        this.throughput = new double[devices.length];
+        for (int i = 0; i < devices.length; i++) {
+            CLContext context = null;
+            try {
+                context = new CLContext(devices[i]);
+                programs.add(factory.create(context));
+            } catch (Exception | Error e) {
+                if (context != null) {
+                    context.close();
+                }
+                closePrograms();
+                throw e;
+            }
+            estimate[i] = Math.max(devices[i].getMaxComputeUnits() * (double)devices[i].getMaxClockFrequency(), 1);
+        }
+        this.executor = Executors.newFixedThreadPool(devices.length, r -> {
+            Thread thread = new Thread(r, "clenum-multi-device");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public List<P> getPrograms() {
+        return programs;
+    }
+
+    /**
+     * Returns the share of the next range each device will receive. Until every
+     * device has been measured the static estimate is used for all of them.
+     */
+    public synchronized double[] getWeights() {
+        double[] basis = throughput;
+        for (double t : throughput) {
+            if (t == 0) {
+                basis = estimate;
+            }
+        }
+
+        double total = 0;
+        for (double t : basis) {
+            total += t;
+        }
+
+        double[] weights = new double[basis.length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = basis[i] / total;
+        }
+        return weights;
+    }
+
+    /**
+     * Splits {@code [0, length)} across all devices, runs {@code task} on every
+     * part concurrently and waits for all of them.
+     */
+    public void run(int length, RangeTask<P> task) throws Exception {
+        double[] weights = getWeights();
+        List<Future<?>> parts = new ArrayList<>();
+
+        int offset = 0;
+        for (int i = 0; i < programs.size(); i++) {
+            int part = i == programs.size() - 1 ? length - offset
+                    : Math.min(Math.max((int)(length * weights[i]), 1), length - offset);
+            if (part > 0) {
+                P program = programs.get(i);
+                int device = i;
+                int start = offset;
+                parts.add(executor.submit(() -> {
+                    long begin = System.nanoTime();
+                    task.run(program, start, part);
+                    record(device, part, System.nanoTime() - begin);
+                    return null;
+                }));
+            }
+            offset += part;
+        }
+
+        try {
+            for (Future<?> f : parts) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+        }
+    }
+
+    private synchronized void record(int device, int elements, long nanos) {
+        double rate = elements / (double)Math.max(nanos, 1);
+        throughput[device] = throughput[device] == 0 ? rate
+                : (1 - SMOOTHING) * throughput[device] + SMOOTHING * rate;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        closePrograms();
+    }
+
+    private void closePrograms() {
+        for (P program : programs) {
+            program.close();
+            program.context.close();
+        }
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        double[] weights = getWeights();
+        sb.append(String.format("Multi Device [%d devices]", programs.size()));
+        for (int i = 0; i < programs.size(); i++) {
+            sb.append(String.format("\n  %s: %.1f%%", programs.get(i).context.getDevice().getName(), 100 * weights[i]));
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,209 @@
+package opencl;
+
+import static org.lwjgl.opencl.CL10.CL_PROFILING_COMMAND_END;
+import static org.lwjgl.opencl.CL10.CL_PROFILING_COMMAND_QUEUED;
+import static org.lwjgl.opencl.CL10.CL_PROFILING_COMMAND_START;
+import static org.lwjgl.opencl.CL10.CL_PROFILING_COMMAND_SUBMIT;
+import static org.lwjgl.opencl.CL10.CL_SUCCESS;
+import static org.lwjgl.opencl.CL10.clGetEventProfilingInfo;
+import static org.lwjgl.opencl.CL10.clReleaseEvent;
+import static org.lwjgl.opencl.CL10.clRetainEvent;
+import static org.lwjgl.system.MemoryStack.stackPush;
+
+import java.nio.LongBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Collects device side timings of enqueued commands.
+ *
+ * A profiler attached to a {@link CLContext} makes every queue of the
+ * context use {@code CL_QUEUE_PROFILING_ENABLE}. Recorded events are read
+ * once they complete and folded into per command statistics: time spent
+ * queued (QUEUED to START), time executing (START to END) and bytes moved.
+ * {@link #scrape()} renders them in the Prometheus text format, and
+ * {@link Listener}s receive every raw sample.
+ *
+ * Events are read asynchronously after they complete, so call
+ * {@link #await()} once the commands have finished, e.g. after
+ * {@link CLContext#finish()}, before reading the statistics.
+ */
+public class CLProfiler {
+    @FunctionalInterface
+    public interface Listener {
+        void onCommand(String command, long queued, long submit, long start, long end, long bytes);
+    }
+
+    /** Log-linear histogram of nanosecond durations, accurate to about 12%. */
+    public static class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+
+        void record(long nanos) {
+            long value = Math.max(nanos, 1);
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = exponent < 3 ? 0 : (int)((value >>> (exponent - 3)) & (SUB_BUCKETS - 1));
+            counts.incrementAndGet(exponent * SUB_BUCKETS + sub);
+            count.incrementAndGet();
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /** Returns the upper bound of the bucket holding quantile {@code q}, in nanoseconds. */
+        public long quantile(double q) {
+            long target = (long)Math.ceil(q * count.get());
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= Math.max(target, 1)) {
+                    int exponent = i / SUB_BUCKETS;
+                    int sub = i % SUB_BUCKETS;
+                    return exponent < 3 ? 1L << (exponent + 1) : (1L << exponent) + ((long)(sub + 1) << (exponent - 3));
+                }
+            }
+            return 0;
+        }
+    }
+
+    public static class CommandStats {
+        private final Histogram queued = new Histogram();
+        private final Histogram execution = new Histogram();
+        private final AtomicLong bytes = new AtomicLong();
+
+        public Histogram getQueued() {
+            return queued;
+        }
+
+        public Histogram getExecution() {
+            return execution;
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+    }
+
+    private final Map<String, CommandStats> commands = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Set<CompletableFuture<?>> pending = ConcurrentHashMap.newKeySet();
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Records the command behind {@code event} under {@code command}. The
+     * event is retained until its timings have been read, so the caller may
+     * release it right away.
+     */
+    public void record(String command, long bytes, long event) {
+        clRetainEvent(event);
+        clRetainEvent(event);
+        CompletableFuture<Void> recorded = CLEvents.whenComplete(event).handle((__, error) -> {
+            try {
+                if (error == null) {
+                    read(command, bytes, event);
+                }
+            } finally {
+                clReleaseEvent(event);
+            }
+            return null;
+        });
+        pending.add(recorded);
+        recorded.whenComplete((__, error) -> pending.remove(recorded));
+    }
+
+    /**
+     * Blocks until every event recorded so far has been read into the
+     * statistics. The commands themselves must complete for this to return.
+     */
+    public void await() {
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /** Returns {@code event}, or a scratch event from {@code stack} if {@code context} profiles and the caller passed none. */
+    static PointerBuffer event(CLContext context, MemoryStack stack, PointerBuffer event) {
+        return event == null && context.getProfiler() != null ? stack.mallocPointer(1) : event;
+    }
+
+    /**
+     * Records the command behind {@code profiled}, as returned by
+     * {@link #event(CLContext, MemoryStack, PointerBuffer)}, if {@code context}
+     * profiles, and releases the event if it was a scratch one.
+     */
+    static void record(CLContext context, String command, long bytes, PointerBuffer profiled, PointerBuffer event) {
+        CLProfiler profiler = context.getProfiler();
+        if (profiler != null && profiled != null) {
+            profiler.record(command, bytes, profiled.get(0));
+            if (event == null) {
+                clReleaseEvent(profiled.get(0));
+            }
+        }
+    }
+
+    private void read(String command, long bytes, long event) {
+        try (MemoryStack stack = stackPush()) {
+            LongBuffer times = stack.mallocLong(4);
+            int[] params = { CL_PROFILING_COMMAND_QUEUED, CL_PROFILING_COMMAND_SUBMIT, CL_PROFILING_COMMAND_START, CL_PROFILING_COMMAND_END };
+            for (int i = 0; i < params.length; i++) {
+                if (clGetEventProfilingInfo(event, params[i], (LongBuffer)times.position(i), null) != CL_SUCCESS) {
+                    return;
+                }
+            }
+            times.clear();
+
+            CommandStats stats = commands.computeIfAbsent(command, k -> new CommandStats());
+            stats.queued.record(times.get(2) - times.get(0));
+            stats.execution.record(times.get(3) - times.get(2));
+            stats.bytes.addAndGet(bytes);
+            for (Listener listener : listeners) {
+                listener.onCommand(command, times.get(0), times.get(1), times.get(2), times.get(3), bytes);
+            }
+        }
+    }
+
+    public Map<String, CommandStats> getCommands() {
+        return new TreeMap<>(commands);
+    }
+
+    public String scrape() {
+        StringBuilder sb = new StringBuilder();
+
+        getCommands().forEach((command, stats) -> {
+            sb.append(String.format("clenum_command_count{command=\"%s\"} %d\n", command, stats.execution.getCount()));
+            sb.append(String.format("clenum_command_bytes_total{command=\"%s\"} %d\n", command, stats.getBytes()));
+            for (double q : new double[] { 0.5, 0.99 }) {
+                sb.append(String.format("clenum_command_queued_seconds{command=\"%s\",quantile=\"%s\"} %.9f\n",
+                        command, q, stats.queued.quantile(q) / 1e9));
+                sb.append(String.format("clenum_command_execution_seconds{command=\"%s\",quantile=\"%s\"} %.9f\n",
+                        command, q, stats.execution.quantile(q) / 1e9));
+            }
+        });
+
+        return sb.toString();
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("Profiler");
+        getCommands().forEach((command, stats) -> sb.append(String.format("\n  %-24s: %6d runs, p50 %8.3f ms, p99 %8.3f ms, %d MB",
+                command, stats.execution.getCount(), stats.execution.quantile(0.5) / 1e6, stats.execution.quantile(0.99) / 1e6,
+                stats.getBytes() / 1024 / 1024)));
+
+        return sb.toString();
+    }
+}
@@ -1,11 +1,35 @@
 package opencl;
 
 import static org.lwjgl.opencl.CL10.*;
+import static org.lwjgl.opencl.InfoUtil.checkCLError;
+import static org.lwjgl.opencl.InfoUtil.getKernelInfoStringASCII;
+import static org.lwjgl.system.MemoryStack.stackPush;
 import static org.lwjgl.system.MemoryUtil.NULL;
+import static org.lwjgl.system.MemoryUtil.memAddress;
+import static org.lwjgl.system.MemoryUtil.memByteBuffer;
+import static org.lwjgl.system.MemoryUtil.memFree;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-abstract public class CLProgram {
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+
+abstract public class CLProgram implements AutoCloseable {
     public enum CompileResult {
         SUCCESS(CL_SUCCESS),
         INVALID_PROGRAM(CL_INVALID_PROGRAM),
@@ -49,28 +73,332 @@ abstract public class CLProgram {
 
     protected final CLContext context;
     protected long program;
-    protected long queue;
+    private CLResource resource;
+    private final String cacheKey;
+    private final Set<String> tunedKernels = ConcurrentHashMap.newKeySet();
+
+    private Map<String, CLKernel> kernels;
+    private final Map<String, Queue<CLKernel>> idleKernels = new ConcurrentHashMap<>();
 
     public CLProgram(CLContext context) throws CLCompileException,Exception {
+        this(context, null, null);
+    }
+
+    /**
+     * Builds {@code source} with {@code options} rather than asking
+     * {@link #getSource()} and {@link #getBuildOptions()}, for subclasses whose
+     * source is only known from constructor arguments.
+     */
+    protected CLProgram(CLContext context, String source, String options) throws CLCompileException,Exception {
         this.context = context;
 
-        String source = getSource();
-        this.program = clCreateProgramWithSource(context.getContextID(), source, null);
-        if (this.program != 0) {
-            StringBuilder options = new StringBuilder("");
-            CompileResult result = CompileResult.fromInt(clBuildProgram(program, context.getDevice().getDeviceID(), options, null, NULL));
+        if (source == null) {
+            source = getSource();
+        }
+        if (options == null) {
+            options = getBuildOptions();
+        }
+        long device = context.getDevice().getDeviceID();
+        CLProgramCache cache = CLProgramCache.getDefault();
+        String key = CLProgramCache.key(source, options, context.getDevice());
+        this.cacheKey = key;
+
+        ByteBuffer binary = cache.load(key);
+        if (binary != null) {
+            try (MemoryStack stack = stackPush()) {
+                IntBuffer status = stack.mallocInt(1);
+                IntBuffer errcode = stack.mallocInt(1);
+                this.program = clCreateProgramWithBinary(context.getContextID(), stack.pointers(device),
+                        stack.pointers(binary.remaining()), stack.pointers(memAddress(binary)), status, errcode);
+                if (errcode.get(0) != CL_SUCCESS || status.get(0) != CL_SUCCESS
+                        || clBuildProgram(program, device, options, null, NULL) != CL_SUCCESS) {
+                    if (this.program != 0) {
+                        clReleaseProgram(this.program);
+                        this.program = 0;
+                    }
+                    cache.invalidate(key);
+                }
+            } finally {
+                memFree(binary);
+            }
+        }
+
+        if (this.program == 0) {
+            this.program = clCreateProgramWithSource(context.getContextID(), source, null);
+            if (this.program == 0) {
+                throw new Exception("Failed to create program.");
+            }
+
+            CompileResult result = CompileResult.fromInt(clBuildProgram(program, device, options, null, NULL));
             if (result != CompileResult.SUCCESS) {
+                clReleaseProgram(program);
                 throw new CLCompileException(result);
-            } else {
-                this.queue = clCreateCommandQueue(context.getContextID(), context.getDevice().getDeviceID(), 0, (IntBuffer)null);
             }
-        } else {
-            throw new Exception("Failed to create program.");
+            cache.store(key, program);
         }
+
+        this.resource = CLResource.track(this, CLResource.Kind.PROGRAM, program, 0, context.getContextID(), device);
     }
 
     protected abstract String getSource();
 
+    /** Reads a kernel source bundled under {@code kernel/} on the classpath. */
+    protected static String readSource(String filename) throws IOException {
+        try (InputStream in = CLProgram.class.getClassLoader().getResourceAsStream("kernel/" + filename)) {
+            if (in == null) {
+                throw new FileNotFoundException("kernel/" + filename);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            for (int n; (n = in.read(chunk)) > 0; ) {
+                out.write(chunk, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Describes the device to the kernel source as macros, so one source can
+     * specialise itself: {@code VECTOR_WIDTH} (see {@link #getVectorWidth()}),
+     * {@code LOCAL_MEM_SIZE} and {@code MAX_WORK_GROUP_SIZE}. The options are
+     * part of the binary cache key, so every device gets its own variant.
+     */
+    protected String getBuildOptions() {
+        CLDevice device = context.getDevice();
+        return String.format("-DVECTOR_WIDTH=%d -DLOCAL_MEM_SIZE=%d -DMAX_WORK_GROUP_SIZE=%d",
+                getVectorWidth(), device.getLocalMemSize(), device.getMaxWorkGroupSize());
+    }
+
+    /**
+     * Returns the device's preferred int vector width if it is one of the
+     * OpenCL vector sizes 2, 4, 8 or 16, or 1 for scalar code.
+     */
+    protected int getVectorWidth() {
+        int width = context.getDevice().getPreferredVectorWidthInt();
+        return width == 2 || width == 4 || width == 8 || width == 16 ? width : 1;
+    }
+
+    /**
+     * Flushes the calling thread's queue, or {@code queue}, and returns a future
+     * completed when {@code event} has finished. The event is released once
+     * the future completes.
+     */
+    protected CompletableFuture<Void> whenComplete(long event) {
+        return whenComplete(context.getQueue(), event);
+    }
+
+    protected CompletableFuture<Void> whenComplete(long queue, long event) {
+        CompletableFuture<Void> future = CLEvents.whenComplete(event);
+        clFlush(queue);
+        return future;
+    }
+
+    /**
+     * Enqueues a one-dimensional launch of {@code kernel} over
+     * {@code globalSize} work-items, leaving the local size to the driver.
+     */
+    protected void enqueueKernel(long queue, long kernel, long globalSize, PointerBuffer waitList, PointerBuffer event) {
+        enqueueKernel(queue, kernel, globalSize, 0, waitList, event);
+    }
+
+    /**
+     * Enqueues a one-dimensional launch with a fixed local size, for kernels
+     * that depend on their work-group shape. {@code globalSize} must be a
+     * multiple of {@code localSize}; a local size of 0 leaves it to the driver.
+     */
+    protected void enqueueKernel(long queue, long kernel, long globalSize, long local, PointerBuffer waitList, PointerBuffer event) {
+        try (MemoryStack stack = stackPush()) {
+            PointerBuffer global = stack.pointers(globalSize);
+            PointerBuffer profiled = profiledEvent(stack, event);
+            checkCLError(clEnqueueNDRangeKernel(queue, kernel, 1, null, global, local == 0 ? null : stack.pointers(local), waitList, profiled));
+            if (context.getProfiler() != null) {
+                profile(getKernelInfoStringASCII(kernel, CL_KERNEL_FUNCTION_NAME), 0, profiled, event);
+            }
+        }
+    }
+
+    /**
+     * Lets {@link CLWorkGroupTuner} pick the local size of the kernel
+     * {@code name}. Only enable this for kernels that ignore work-items past
+     * their length and do not read their own outputs: the first large
+     * blocking launch runs the kernel several times.
+     */
+    public void enableTuning(String name) {
+        tunedKernels.add(name);
+    }
+
+    public boolean isTuningEnabled(String name) {
+        return tunedKernels.contains(name);
+    }
+
+    /** Returns the tuned local size of the kernel {@code name}, or 0 if it is not tuned (yet). */
+    protected long getTunedLocalSize(String name) {
+        return tunedKernels.contains(name) ? CLWorkGroupTuner.getInstance().getLocalSize(tuningKey(name)) : 0;
+    }
+
+    /**
+     * Tunes the kernel {@code name} with its current arguments unless it
+     * already is, see {@link CLWorkGroupTuner}. Waits for the tuning launches,
+     * so only blocking launch paths call this.
+     */
+    protected void tune(long queue, long kernel, String name, long globalSize) {
+        if (tunedKernels.contains(name)) {
+            CLWorkGroupTuner.getInstance().localSize(tuningKey(name), context, queue, kernel, globalSize);
+        }
+    }
+
+    private String tuningKey(String name) {
+        return String.format("%s %s@%.16s", getClass().getSimpleName(), name, cacheKey);
+    }
+
+    protected void enqueueWrite(long queue, long buffer, boolean blocking, int[] src, PointerBuffer waitList, PointerBuffer event) {
+        enqueueTransfer(".write", 4L*src.length, event, profiled -> clEnqueueWriteBuffer(queue, buffer, blocking, 0, src, waitList, profiled));
+    }
+
+    protected void enqueueWrite(long queue, long buffer, boolean blocking, IntBuffer src, PointerBuffer waitList, PointerBuffer event) {
+        enqueueTransfer(".write", 4L*src.remaining(), event, profiled -> clEnqueueWriteBuffer(queue, buffer, blocking, 0, src, waitList, profiled));
+    }
+
+    protected void enqueueWrite(long queue, long buffer, boolean blocking, float[] src, PointerBuffer waitList, PointerBuffer event) {
+        enqueueTransfer(".write", 4L*src.length, event, profiled -> clEnqueueWriteBuffer(queue, buffer, blocking, 0, src, waitList, profiled));
+    }
+
+    protected void enqueueWrite(long queue, long buffer, boolean blocking, double[] src, PointerBuffer waitList, PointerBuffer event) {
+        enqueueTransfer(".write", 8L*src.length, event, profiled -> clEnqueueWriteBuffer(queue, buffer, blocking, 0, src, waitList, profiled));
+    }
+
+    /** LWJGL has no {@code long[]} transfers, so longs go through a direct buffer. */
+    protected void enqueueWrite(long queue, long buffer, boolean blocking, LongBuffer src, PointerBuffer waitList, PointerBuffer event) {
+        enqueueTransfer(".write", 8L*src.remaining(), event, profiled -> clEnqueueWriteBuffer(queue, buffer, blocking, 0, memByteBuffer(memAddress(src), 8*src.remaining()), waitList, profiled));
+    }
+
+    protected void enqueueRead(long queue, long buffer, boolean blocking, int[] dst, PointerBuffer waitList, PointerBuffer event) {
+        enqueueRead(queue, buffer, blocking, 0, dst, waitList, event);
+    }
+
+    /** Reads {@code dst.length} ints starting {@code offset} bytes into {@code buffer}. */
+    protected void enqueueRead(long queue, long buffer, boolean blocking, long offset, int[] dst, PointerBuffer waitList, PointerBuffer event) {
+        enqueueTransfer(".read", 4L*dst.length, event, profiled -> clEnqueueReadBuffer(queue, buffer, blocking, offset, dst, waitList, profiled));
+    }
+
+    protected void enqueueRead(long queue, long buffer, boolean blocking, IntBuffer dst, PointerBuffer waitList, PointerBuffer event) {
+        enqueueTransfer(".read", 4L*dst.remaining(), event, profiled -> clEnqueueReadBuffer(queue, buffer, blocking, 0, dst, waitList, profiled));
+    }
+
+    protected void enqueueRead(long queue, long buffer, boolean blocking, float[] dst, PointerBuffer waitList, PointerBuffer event) {
+        enqueueTransfer(".read", 4L*dst.length, event, profiled -> clEnqueueReadBuffer(queue, buffer, blocking, 0, dst, waitList, profiled));
+    }
+
+    protected void enqueueRead(long queue, long buffer, boolean blocking, double[] dst, PointerBuffer waitList, PointerBuffer event) {
+        enqueueTransfer(".read", 8L*dst.length, event, profiled -> clEnqueueReadBuffer(queue, buffer, blocking, 0, dst, waitList, profiled));
+    }
+
+    protected void enqueueRead(long queue, long buffer, boolean blocking, LongBuffer dst, PointerBuffer waitList, PointerBuffer event) {
+        enqueueTransfer(".read", 8L*dst.remaining(), event, profiled -> clEnqueueReadBuffer(queue, buffer, blocking, 0, memByteBuffer(memAddress(dst), 8*dst.remaining()), waitList, profiled));
+    }
+
+    @FunctionalInterface
+    private interface Transfer {
+        int enqueue(PointerBuffer event);
+    }
+
+    private void enqueueTransfer(String command, long bytes, PointerBuffer event, Transfer transfer) {
+        try (MemoryStack stack = stackPush()) {
+            PointerBuffer profiled = profiledEvent(stack, event);
+            checkCLError(transfer.enqueue(profiled));
+            profile(getClass().getSimpleName() + command, bytes, profiled, event);
+        }
+    }
+
+    /** Returns the caller's event buffer, or a scratch one if profiling needs an event the caller did not ask for. */
+    private PointerBuffer profiledEvent(MemoryStack stack, PointerBuffer event) {
+        return CLProfiler.event(context, stack, event);
+    }
+
+    private void profile(String command, long bytes, PointerBuffer profiled, PointerBuffer event) {
+        CLProfiler.record(context, command, bytes, profiled, event);
+    }
+
+    /** Returns every kernel of the program by name, creating them on first use. */
+    public synchronized Map<String, CLKernel> getKernels() {
+        if (kernels == null) {
+            kernels = new HashMap<>();
+            try (MemoryStack stack = stackPush()) {
+                IntBuffer count = stack.mallocInt(1);
+                checkCLError(clCreateKernelsInProgram(program, (PointerBuffer)null, count));
+                PointerBuffer ids = stack.mallocPointer(count.get(0));
+                checkCLError(clCreateKernelsInProgram(program, ids, (IntBuffer)null));
+                for (int i = 0; i < ids.capacity(); i++) {
+                    CLKernel kernel = new CLKernel(this, ids.get(i), false);
+                    kernels.put(kernel.getName(), kernel);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(kernels);
+    }
+
+    public CLKernel getKernel(String name) {
+        CLKernel kernel = getKernels().get(name);
+        if (kernel == null) {
+            throw new IllegalArgumentException(String.format("No kernel %s in %s", name, this));
+        }
+        return kernel;
+    }
+
+    /**
+     * Hands out a kernel instance for the exclusive use of the caller, creating
+     * a new {@code cl_kernel} when none is idle. Closing it returns it here.
+     */
+    public CLKernel borrowKernel(String name) {
+        Queue<CLKernel> idle = idleKernels.get(name);
+        CLKernel kernel = idle != null ? idle.poll() : null;
+        if (kernel != null) {
+            return kernel;
+        }
+
+        try (MemoryStack stack = stackPush()) {
+            IntBuffer errcode = stack.mallocInt(1);
+            long id = clCreateKernel(program, name, errcode);
+            checkCLError(errcode);
+            return new CLKernel(this, id, true);
+        }
+    }
+
+    void returnKernel(CLKernel kernel) {
+        idleKernels.computeIfAbsent(kernel.getName(), k -> new ConcurrentLinkedQueue<>()).offer(kernel);
+    }
+
+    /**
+     * Releases the program and its kernels. Kernels still borrowed
+     * are released once collected.
+     */
+    @Override
+    public synchronized void close() {
+        if (kernels != null) {
+            for (CLKernel kernel : kernels.values()) {
+                kernel.release();
+            }
+        }
+        for (Queue<CLKernel> idle : idleKernels.values()) {
+            CLKernel kernel;
+            while ((kernel = idle.poll()) != null) {
+                kernel.release();
+            }
+        }
+        resource.close();
+    }
+
+    /** Returns the calling thread's queue of the context, which every command of the program goes to. */
+    public long getQueue() {
+        return context.getQueue();
+    }
+
+    /** Creates a buffer bound to the calling thread's queue, see {@link CLIntBuffer}. */
+    public CLIntBuffer createIntBuffer(long flags, int length) {
+        return new CLIntBuffer(context, context.getQueue(), flags, length);
+    }
+
     public String toString() {
         StringBuilder sb = new StringBuilder();
 
@@ -0,0 +1,126 @@
+package opencl;
+
+import static org.lwjgl.opencl.CL10.CL_PROGRAM_BINARIES;
+import static org.lwjgl.opencl.CL10.CL_PROGRAM_BINARY_SIZES;
+import static org.lwjgl.opencl.CL10.clGetProgramInfo;
+import static org.lwjgl.opencl.InfoUtil.checkCLError;
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.system.MemoryUtil.memAddress;
+import static org.lwjgl.system.MemoryUtil.memAlloc;
+import static org.lwjgl.system.MemoryUtil.memFree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * On-disk cache of built program binaries.
+ *
+ * Entries are keyed by a hash of the program source, build options, device
+ * name and driver version, so a driver update or an edited kernel simply
+ * misses. The cache is best effort: unreadable or unwritable entries are
+ * treated as misses. The directory defaults to {@code ~/.cache/clenum} and
+ * can be moved with the {@code clenum.cache.dir} system property.
+ */
+public class CLProgramCache {
+    private static final CLProgramCache defaultCache = new CLProgramCache(Paths.get(System.getProperty("clenum.cache.dir",
+            Paths.get(System.getProperty("user.home"), ".cache", "clenum").toString())));
+
+    private final Path directory;
+
+    public CLProgramCache(Path directory) {
+        this.directory = directory;
+    }
+
+    public static CLProgramCache getDefault() {
+        return defaultCache;
+    }
+
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    public static String key(String source, String options, CLDevice device) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : new String[] { source, options, device.getName(), device.getDriverVersion() }) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte)0);
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Returns the cached binary in a buffer that the caller must free, or null on a miss. */
+    public ByteBuffer load(String key) {
+        Path file = directory.resolve(key + ".bin");
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            ByteBuffer binary = memAlloc(bytes.length);
+            binary.put(bytes).flip();
+            return binary;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Stores the binary of a program built for a single device. */
+    public void store(String key, long program) {
+        try (MemoryStack stack = stackPush()) {
+            PointerBuffer sizes = stack.mallocPointer(1);
+            checkCLError(clGetProgramInfo(program, CL_PROGRAM_BINARY_SIZES, sizes, null));
+            int size = (int)sizes.get(0);
+            if (size == 0) {
+                return;
+            }
+
+            ByteBuffer binary = memAlloc(size);
+            try {
+                checkCLError(clGetProgramInfo(program, CL_PROGRAM_BINARIES, stack.pointers(memAddress(binary)), null));
+                byte[] bytes = new byte[size];
+                binary.get(bytes);
+
+                Files.createDirectories(directory);
+                Path temp = Files.createTempFile(directory, key, ".tmp");
+                Files.write(temp, bytes);
+                Files.move(temp, directory.resolve(key + ".bin"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // Leave the entry missing, the next start builds from source again.
+            } finally {
+                memFree(binary);
+            }
+        }
+    }
+
+    public void invalidate(String key) {
+        try {
+            Files.deleteIfExists(directory.resolve(key + ".bin"));
+        } catch (IOException e) {
+            // Nothing cached to worry about if it cannot be removed either.
+        }
+    }
+
+    public String toString() {
+        return String.format("Program Cache [%s]", directory);
+    }
+}
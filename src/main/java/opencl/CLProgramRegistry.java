@@ -0,0 +1,183 @@
+package opencl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import opencl.CLMultiDevice.ProgramFactory;
+
+/**
+ * Builds every registered program for every context in parallel at startup
+ * and warms each one up with a small launch, so that the first real request
+ * pays neither the compile nor the driver's first-launch cost.
+ *
+ * Register programs, call {@link #start(CLContext...)} once, and admit
+ * traffic when {@link #isReady()} is true or {@link #whenReady()} completes.
+ * Builds run on a pool of daemon threads; the OpenCL API is thread safe, so
+ * the driver compiles them concurrently.
+ */
+public class CLProgramRegistry implements AutoCloseable {
+    @FunctionalInterface
+    public interface WarmUp<P> {
+        void run(P program) throws Exception;
+    }
+
+    public enum State { BUILDING, WARMING_UP, READY, FAILED }
+
+    private static class Registration<P extends CLProgram> {
+        final ProgramFactory<P> factory;
+        final WarmUp<P> warmUp;
+
+        Registration(ProgramFactory<P> factory, WarmUp<P> warmUp) {
+            this.factory = factory;
+            this.warmUp = warmUp;
+        }
+    }
+
+    private class Build {
+        final String name;
+        final CLContext context;
+        final CompletableFuture<CLProgram> program;
+        volatile State state = State.BUILDING;
+        volatile long buildMillis;
+        volatile long warmUpMillis;
+        volatile Throwable failure;
+
+        Build(String name, CLContext context, Registration<?> registration) {
+            this.name = name;
+            this.context = context;
+            this.program = CompletableFuture.supplyAsync(() -> run(registration), executor);
+        }
+
+        private <P extends CLProgram> P run(Registration<P> registration) {
+            try {
+                long start = System.nanoTime();
+                P program = registration.factory.create(context);
+                buildMillis = (System.nanoTime() - start) / 1_000_000;
+
+                state = State.WARMING_UP;
+                start = System.nanoTime();
+                if (registration.warmUp != null) {
+                    registration.warmUp.run(program);
+                }
+                warmUpMillis = (System.nanoTime() - start) / 1_000_000;
+
+                state = State.READY;
+                return program;
+            } catch (Exception e) {
+                failure = e;
+                state = State.FAILED;
+                throw new CompletionException(e);
+            }
+        }
+    }
+
+    private final Map<String, Registration<?>> registrations = new LinkedHashMap<>();
+    private final List<Build> builds = new ArrayList<>();
+    private final ExecutorService executor;
+    private CompletableFuture<Void> ready;
+
+    public CLProgramRegistry() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** @param threads number of programs built at the same time */
+    public CLProgramRegistry(int threads) {
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "clenum-program-build");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Registers a program under {@code name}. {@code warmUp} may be null to skip the warm-up launch. */
+    public synchronized <P extends CLProgram> CLProgramRegistry register(String name, ProgramFactory<P> factory, WarmUp<P> warmUp) {
+        if (ready != null) {
+            throw new IllegalStateException("programs must be registered before start");
+        }
+        registrations.put(name, new Registration<>(factory, warmUp));
+        return this;
+    }
+
+    /** Starts building every registered program for each of {@code contexts} and returns {@link #whenReady()}. */
+    public synchronized CompletableFuture<Void> start(CLContext... contexts) {
+        if (ready != null) {
+            throw new IllegalStateException("already started");
+        }
+
+        for (CLContext context : contexts) {
+            for (Map.Entry<String, Registration<?>> registration : registrations.entrySet()) {
+                builds.add(new Build(registration.getKey(), context, registration.getValue()));
+            }
+        }
+        ready = CompletableFuture.allOf(builds.stream().map(build -> build.program).toArray(CompletableFuture[]::new));
+        return ready;
+    }
+
+    /** Completes once every program is built and warmed up, or exceptionally with the first failure. */
+    public synchronized CompletableFuture<Void> whenReady() {
+        if (ready == null) {
+            throw new IllegalStateException("not started");
+        }
+        return ready;
+    }
+
+    public synchronized boolean isReady() {
+        return ready != null && ready.isDone() && !ready.isCompletedExceptionally();
+    }
+
+    public synchronized State getState(String name, CLContext context) {
+        return find(name, context).state;
+    }
+
+    /** Returns the program built for {@code context}, waiting for its build and warm-up if needed. */
+    @SuppressWarnings("unchecked")
+    public <P extends CLProgram> P get(String name, CLContext context) {
+        Build build;
+        synchronized (this) {
+            build = find(name, context);
+        }
+        return (P)build.program.join();
+    }
+
+    private Build find(String name, CLContext context) {
+        for (Build build : builds) {
+            if (build.name.equals(name) && build.context == context) {
+                return build;
+            }
+        }
+        throw new IllegalArgumentException(String.format("%s is not registered for context [0x%x]", name, context.getContextID()));
+    }
+
+    /** Stops pending builds and closes every program built so far. Contexts stay open. */
+    @Override
+    public synchronized void close() {
+        executor.shutdownNow();
+        for (Build build : builds) {
+            if (build.program.isDone() && !build.program.isCompletedExceptionally()) {
+                build.program.join().close();
+            }
+        }
+    }
+
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(String.format("Program Registry [%s]", isReady() ? "ready" : "not ready"));
+        for (Build build : builds) {
+            sb.append(String.format("\n  %-12s %-30s: %s", build.name, build.context.getDevice().getName(), build.state));
+            if (build.state == State.FAILED) {
+                sb.append(String.format(" (%s)", build.failure));
+            } else if (build.state == State.READY) {
+                sb.append(String.format(" (build %d ms, warm-up %d ms)", build.buildMillis, build.warmUpMillis));
+            }
+        }
+
+        return sb.toString();
+    }
+}
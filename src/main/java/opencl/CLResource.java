@@ -0,0 +1,246 @@
+package opencl;
+
+import static org.lwjgl.opencl.CL10.clReleaseCommandQueue;
+import static org.lwjgl.opencl.CL10.clReleaseContext;
+import static org.lwjgl.opencl.CL10.clReleaseKernel;
+import static org.lwjgl.opencl.CL10.clReleaseMemObject;
+import static org.lwjgl.opencl.CL10.clReleaseProgram;
+
+import java.io.PrintStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracked OpenCL object.
+ *
+ * Every context, queue, program, kernel and memory object created by this
+ * library is tracked here with its size, context and device, which gives live
+ * object counts and allocated bytes per context and device. The first
+ * {@link #close()} releases the object. Every object has a single owner, so
+ * there is no reference counting on top of OpenCL's own.
+ *
+ * A resource may name an owner, the Java object it belongs to. Should the
+ * owner become unreachable while the resource is still open, a daemon thread
+ * releases it, counts a leak and tells the {@link LeakListener}s. With
+ * {@code -Dclenum.leaks=debug} every resource records where it was allocated,
+ * see {@link #getAllocationSite()}.
+ */
+public final class CLResource implements AutoCloseable {
+    public enum Kind { CONTEXT, QUEUE, PROGRAM, KERNEL, MEMORY }
+
+    @FunctionalInterface
+    public interface LeakListener {
+        /**
+         * Called on the reaper thread once a leaked resource has been
+         * released, with the exception releasing it threw, or null.
+         */
+        void onLeak(CLResource resource, RuntimeException releaseFailure);
+    }
+
+    private static final boolean DEBUG = "debug".equals(System.getProperty("clenum.leaks"));
+
+    private static final Set<CLResource> live = ConcurrentHashMap.newKeySet();
+    private static final Map<Kind, AtomicLong> liveCounts = new EnumMap<>(Kind.class);
+    private static final Map<Long, AtomicLong> contextBytes = new ConcurrentHashMap<>();
+    private static final Map<Long, AtomicLong> deviceBytes = new ConcurrentHashMap<>();
+    private static final AtomicLong leaks = new AtomicLong();
+    private static final List<LeakListener> leakListeners = new CopyOnWriteArrayList<>();
+    private static final ReferenceQueue<Object> unreachable = new ReferenceQueue<>();
+
+    static {
+        for (Kind kind : Kind.values()) {
+            liveCounts.put(kind, new AtomicLong());
+        }
+
+        Thread reaper = new Thread(CLResource::reap, "clenum-resource-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /** Watches an owner without keeping it alive. Reachable from {@link CLResource#guard} until the resource is closed. */
+    private static final class Guard extends PhantomReference<Object> {
+        private final CLResource resource;
+
+        Guard(Object owner, CLResource resource) {
+            super(owner, unreachable);
+            this.resource = resource;
+        }
+    }
+
+    private final Kind kind;
+    private final long id;
+    private final long bytes;
+    private final long context;
+    private final long device;
+    private final AtomicBoolean open = new AtomicBoolean(true);
+    private final Throwable allocationSite;
+    private final Guard guard;
+
+    private CLResource(Object owner, Kind kind, long id, long bytes, long context, long device) {
+        this.kind = kind;
+        this.id = id;
+        this.bytes = bytes;
+        this.context = context;
+        this.device = device;
+        this.allocationSite = DEBUG ? new Throwable(String.format("%s [0x%x] allocated here", kind, id)) : null;
+        this.guard = owner != null ? new Guard(owner, this) : null;
+    }
+
+    /**
+     * Starts tracking {@code id}, created in {@code context} on {@code device},
+     * to be closed by the caller.
+     */
+    static CLResource track(Object owner, Kind kind, long id, long bytes, long context, long device) {
+        CLResource resource = new CLResource(owner, kind, id, bytes, context, device);
+        live.add(resource);
+        liveCounts.get(kind).incrementAndGet();
+        if (bytes != 0) {
+            contextBytes.computeIfAbsent(context, k -> new AtomicLong()).addAndGet(bytes);
+            deviceBytes.computeIfAbsent(device, k -> new AtomicLong()).addAndGet(bytes);
+        }
+        return resource;
+    }
+
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    public long getID() {
+        return this.id;
+    }
+
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    /** Returns where the resource was allocated, or null unless {@code -Dclenum.leaks=debug}. */
+    public Throwable getAllocationSite() {
+        return this.allocationSite;
+    }
+
+    public boolean isReleased() {
+        return !open.get();
+    }
+
+    /** Releases the object. Closing a released resource does nothing. */
+    @Override
+    public void close() {
+        if (open.compareAndSet(true, false)) {
+            if (guard != null) {
+                guard.clear();
+            }
+            free();
+        }
+    }
+
+    private void free() {
+        live.remove(this);
+        liveCounts.get(kind).decrementAndGet();
+        if (bytes != 0) {
+            contextBytes.get(context).addAndGet(-bytes);
+            deviceBytes.get(device).addAndGet(-bytes);
+        }
+
+        switch (kind) {
+        case CONTEXT:
+            clReleaseContext(id);
+            break;
+        case QUEUE:
+            clReleaseCommandQueue(id);
+            break;
+        case PROGRAM:
+            clReleaseProgram(id);
+            break;
+        case KERNEL:
+            clReleaseKernel(id);
+            break;
+        case MEMORY:
+            clReleaseMemObject(id);
+            break;
+        }
+    }
+
+    private static void reap() {
+        while (true) {
+            try {
+                CLResource resource = ((Guard)unreachable.remove()).resource;
+                if (resource.open.getAndSet(false)) {
+                    leaks.incrementAndGet();
+                    RuntimeException releaseFailure = null;
+                    try {
+                        resource.free();
+                    } catch (RuntimeException e) {
+                        releaseFailure = e;
+                    }
+                    for (LeakListener listener : leakListeners) {
+                        listener.onLeak(resource, releaseFailure);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // A failing listener must not stop the reaper.
+            }
+        }
+    }
+
+    public static long getLiveCount(Kind kind) {
+        return liveCounts.get(kind).get();
+    }
+
+    /** Returns the bytes of memory objects currently allocated in {@code context}, pooled ones included. */
+    public static long getAllocatedBytes(CLContext context) {
+        AtomicLong allocated = contextBytes.get(context.getContextID());
+        return allocated != null ? allocated.get() : 0;
+    }
+
+    public static long getAllocatedBytes(CLDevice device) {
+        AtomicLong allocated = deviceBytes.get(device.getDeviceID());
+        return allocated != null ? allocated.get() : 0;
+    }
+
+    public static void addLeakListener(LeakListener listener) {
+        leakListeners.add(listener);
+    }
+
+    /** Returns how many resources were released because their owner was collected without closing them. */
+    public static long getLeakCount() {
+        return leaks.get();
+    }
+
+    /** Prints every live resource, with its allocation site in debug mode. */
+    public static void dumpLive(PrintStream out) {
+        for (CLResource resource : live) {
+            out.println(resource);
+            if (resource.allocationSite != null) {
+                resource.allocationSite.printStackTrace(out);
+            }
+        }
+    }
+
+    public static String summary() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(String.format("Resources [%d leaked]", leaks.get()));
+        for (Kind kind : Kind.values()) {
+            sb.append(String.format("\n  %-8s: %d live", kind, liveCounts.get(kind).get()));
+        }
+        for (Map.Entry<Long, AtomicLong> device : deviceBytes.entrySet()) {
+            sb.append(String.format("\n  Device [0x%x]: %d bytes", device.getKey(), device.getValue().get()));
+        }
+
+        return sb.toString();
+    }
+
+    public String toString() {
+        return String.format("%s [0x%x] %d bytes%s", kind, id, bytes, isReleased() ? ", released" : "");
+    }
+}
@@ -0,0 +1,36 @@
+package opencl;
+
+/**
+ * Program built from a source string, for kernels that are driven entirely
+ * through {@link CLKernel} and need no program class of their own.
+ */
+public class CLSourceProgram extends CLProgram {
+    private final String source;
+    private final String options;
+
+    /** Builds {@code source} with the default device macros of {@link CLProgram#getBuildOptions()}. */
+    public CLSourceProgram(CLContext context, String source) throws CLCompileException,Exception {
+        this(context, source, null);
+    }
+
+    public CLSourceProgram(CLContext context, String source, String options) throws CLCompileException,Exception {
+        super(context, source, options);
+        this.source = source;
+        this.options = options;
+    }
+
+    /** Builds a kernel source bundled under {@code kernel/} on the classpath. */
+    public static CLSourceProgram fromResource(CLContext context, String filename) throws CLCompileException,Exception {
+        return new CLSourceProgram(context, readSource(filename));
+    }
+
+    @Override
+    protected String getSource() {
+        return source;
+    }
+
+    @Override
+    protected String getBuildOptions() {
+        return options != null ? options : super.getBuildOptions();
+    }
+}
@@ -0,0 +1,315 @@
+package opencl;
+
+import static org.lwjgl.opencl.CL10.CL_MEM_READ_ONLY;
+import static org.lwjgl.opencl.CL10.CL_MEM_WRITE_ONLY;
+import static org.lwjgl.opencl.CL10.clEnqueueReadBuffer;
+import static org.lwjgl.opencl.CL10.clEnqueueWriteBuffer;
+import static org.lwjgl.opencl.CL10.clFlush;
+import static org.lwjgl.opencl.CL10.clReleaseEvent;
+import static org.lwjgl.opencl.CL10.clWaitForEvents;
+import static org.lwjgl.opencl.InfoUtil.checkCLError;
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.system.MemoryUtil.NULL;
+import static org.lwjgl.system.MemoryUtil.memAlloc;
+import static org.lwjgl.system.MemoryUtil.memFree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Streams inputs of arbitrary length through a device in fixed size chunks.
+ *
+ * Chunks rotate through a ring of slots, each with its own staging and device
+ * buffers. Uploads, kernel launches and downloads go to three separate
+ * in-order queues chained by events, so while one slot is computing the next
+ * is uploading and the previous one is downloading.
+ */
+public class CLStreamPipeline implements AutoCloseable {
+    @FunctionalInterface
+    public interface Source {
+        /** Reads into {@code dst}, returning the bytes read or -1 at end of stream. */
+        int read(ByteBuffer dst) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface Sink {
+        int write(ByteBuffer src) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface ChunkKernel {
+        /**
+         * Enqueues the computation of one chunk of {@code elements} ints from
+         * the {@code inputs} buffers into {@code output}, waiting on
+         * {@code waitList} and returning the launch event through {@code event}.
+         */
+        void enqueue(long queue, long[] inputs, long output, int elements, PointerBuffer waitList, PointerBuffer event);
+    }
+
+    private class Slot {
+        final ByteBuffer[] hostInputs = new ByteBuffer[inputs];
+        final CLBuffer[] deviceInputs = new CLBuffer[inputs];
+        final long[] deviceInputIDs = new long[inputs];
+        final ByteBuffer hostOutput = memAlloc(chunkBytes);
+        final CLBuffer deviceOutput = context.getBufferPool().acquire(CL_MEM_WRITE_ONLY, chunkBytes);
+        long download = NULL;
+        int outputBytes;
+
+        Slot() {
+            for (int i = 0; i < inputs; i++) {
+                hostInputs[i] = memAlloc(chunkBytes);
+                deviceInputs[i] = context.getBufferPool().acquire(CL_MEM_READ_ONLY, chunkBytes);
+                deviceInputIDs[i] = deviceInputs[i].getBufferID();
+            }
+        }
+
+        void free() {
+            for (int i = 0; i < inputs; i++) {
+                memFree(hostInputs[i]);
+                deviceInputs[i].close();
+            }
+            memFree(hostOutput);
+            deviceOutput.close();
+        }
+    }
+
+    public static final int DEFAULT_CHUNK_BYTES = 16 << 20;
+
+    private final CLContext context;
+    private final int inputs;
+    private final int chunkBytes;
+    private final long uploadQueue;
+    private final long computeQueue;
+    private final long downloadQueue;
+    private final Slot[] slots;
+
+    public CLStreamPipeline(CLContext context, int inputs) {
+        this(context, inputs, 3, DEFAULT_CHUNK_BYTES);
+    }
+
+    /**
+     * @param depth      number of chunks in flight, two for double and three for triple buffering
+     * @param chunkBytes requested chunk size, reduced if the ring would not fit in device memory
+     */
+    public CLStreamPipeline(CLContext context, int inputs, int depth, int chunkBytes) {
+        this.context = context;
+        this.inputs = inputs;
+
+        CLDevice device = context.getDevice();
+        long fitting = Math.min(device.getMaxMemAllocSize(), device.getGlobalMemSize() / 2 / depth / (inputs + 1));
+        this.chunkBytes = (int)Math.min(chunkBytes, fitting) & ~3;
+
+        this.uploadQueue = context.createCommandQueue(0);
+        this.computeQueue = context.createCommandQueue(0);
+        this.downloadQueue = context.createCommandQueue(0);
+        this.slots = new Slot[depth];
+        for (int i = 0; i < depth; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    public int getChunkElements() {
+        return chunkBytes / 4;
+    }
+
+    /**
+     * Runs {@code kernel} over all of {@code sources}, which are read in
+     * lockstep until the shortest one ends, writing every computed chunk to
+     * {@code sink} in order. Returns the number of ints processed.
+     */
+    public long run(Source[] sources, Sink sink, ChunkKernel kernel) throws IOException {
+        assert(sources.length == inputs);
+
+        long total = 0;
+        int chunk = 0;
+        for (; ; chunk++) {
+            Slot slot = slots[chunk % slots.length];
+            drain(slot, sink);
+
+            int bytes = chunkBytes;
+            for (int i = 0; i < inputs; i++) {
+                bytes = Math.min(bytes, fill(sources[i], slot.hostInputs[i]));
+            }
+            bytes &= ~3;
+            if (bytes == 0) {
+                break;
+            }
+
+            enqueue(slot, slot.hostInputs, slot.hostOutput, bytes, kernel);
+            total += bytes / 4;
+        }
+
+        for (int i = 1; i < slots.length; i++) {
+            drain(slots[(chunk + i) % slots.length], sink);
+        }
+        return total;
+    }
+
+    /**
+     * Runs {@code kernel} over mapped files, uploading every chunk straight
+     * from the mapping and downloading it straight into {@code output}, so
+     * neither side is copied through staging memory. Chunks are page aligned
+     * and stop at mapping windows. Processes as many ints as the shortest
+     * file holds and returns their number.
+     */
+    public long run(CLMappedFile[] sources, CLMappedFile output, ChunkKernel kernel) throws IOException {
+        return runMapped(sources, output, null, kernel);
+    }
+
+    /** Like {@link #run(CLMappedFile[], CLMappedFile, ChunkKernel)}, with results written to {@code sink} instead of a file. */
+    public long run(CLMappedFile[] sources, Sink sink, ChunkKernel kernel) throws IOException {
+        return runMapped(sources, null, sink, kernel);
+    }
+
+    private long runMapped(CLMappedFile[] sources, CLMappedFile output, Sink sink, ChunkKernel kernel) throws IOException {
+        assert(sources.length == inputs);
+
+        long length = output != null ? output.size() : Long.MAX_VALUE;
+        for (CLMappedFile source : sources) {
+            length = Math.min(length, source.size());
+        }
+        length &= ~3L;
+        int step = chunkBytes >= CLMappedFile.PAGE_BYTES ? chunkBytes & ~(CLMappedFile.PAGE_BYTES - 1) : chunkBytes;
+
+        ByteBuffer[] regions = new ByteBuffer[inputs];
+        long offset = 0;
+        int chunk = 0;
+        for (; offset < length; chunk++) {
+            Slot slot = slots[chunk % slots.length];
+            drain(slot, sink);
+
+            int bytes = (int)Math.min(step, length - offset);
+            for (int i = 0; i < inputs; i++) {
+                regions[i] = sources[i].region(offset, bytes);
+                bytes = Math.min(bytes, regions[i].remaining());
+            }
+            ByteBuffer region = slot.hostOutput;
+            if (output != null) {
+                region = output.region(offset, bytes);
+                bytes = Math.min(bytes, region.remaining());
+            }
+
+            enqueue(slot, regions, region, bytes, kernel);
+            offset += bytes;
+        }
+
+        for (int i = 1; i < slots.length; i++) {
+            drain(slots[(chunk + i) % slots.length], sink);
+        }
+        return offset / 4;
+    }
+
+    private void enqueue(Slot slot, ByteBuffer[] hostInputs, ByteBuffer hostOutput, int bytes, ChunkKernel kernel) {
+        try (MemoryStack stack = stackPush()) {
+            PointerBuffer uploads = stack.mallocPointer(inputs);
+            PointerBuffer upload = stack.mallocPointer(1);
+            for (int i = 0; i < inputs; i++) {
+                hostInputs[i].limit(bytes);
+                checkCLError(clEnqueueWriteBuffer(uploadQueue, slot.deviceInputIDs[i], false, 0, hostInputs[i], null, upload));
+                uploads.put(i, upload.get(0));
+            }
+
+            PointerBuffer compute = stack.mallocPointer(1);
+            kernel.enqueue(computeQueue, slot.deviceInputIDs, slot.deviceOutput.getBufferID(), bytes / 4, uploads, compute);
+
+            PointerBuffer download = stack.mallocPointer(1);
+            hostOutput.clear().limit(bytes);
+            checkCLError(clEnqueueReadBuffer(downloadQueue, slot.deviceOutput.getBufferID(), false, 0, hostOutput,
+                    stack.pointers(compute.get(0)), download));
+            slot.download = download.get(0);
+            slot.outputBytes = bytes;
+
+            CLProfiler profiler = context.getProfiler();
+            if (profiler != null) {
+                for (int i = 0; i < inputs; i++) {
+                    profiler.record("stream.upload", bytes, uploads.get(i));
+                }
+                profiler.record("stream.download", bytes, slot.download);
+            }
+
+            for (int i = 0; i < inputs; i++) {
+                clReleaseEvent(uploads.get(i));
+            }
+            clReleaseEvent(compute.get(0));
+        }
+
+        clFlush(uploadQueue);
+        clFlush(computeQueue);
+        clFlush(downloadQueue);
+    }
+
+    private void drain(Slot slot, Sink sink) throws IOException {
+        if (slot.download == NULL) {
+            return;
+        }
+
+        checkCLError(clWaitForEvents(slot.download));
+        clReleaseEvent(slot.download);
+        slot.download = NULL;
+        if (sink == null) {
+            // downloaded straight into a mapped output
+            return;
+        }
+
+        slot.hostOutput.clear().limit(slot.outputBytes);
+        while (slot.hostOutput.hasRemaining()) {
+            sink.write(slot.hostOutput);
+        }
+    }
+
+    private static int fill(Source source, ByteBuffer dst) throws IOException {
+        dst.clear();
+        while (dst.hasRemaining()) {
+            if (source.read(dst) < 0) {
+                break;
+            }
+        }
+        dst.flip();
+        return dst.remaining();
+    }
+
+    /** Adapts a buffer, for example a mapped file region, to a {@link Source}. */
+    public static Source source(ByteBuffer src) {
+        return dst -> {
+            if (!src.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(src.remaining(), dst.remaining());
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + n);
+            dst.put(slice);
+            src.position(src.position() + n);
+            return n;
+        };
+    }
+
+    /** Adapts a buffer, for example a mapped file region, to a {@link Sink}. */
+    public static Sink sink(ByteBuffer dst) {
+        return src -> {
+            int n = src.remaining();
+            dst.put(src);
+            return n;
+        };
+    }
+
+    @Override
+    public void close() {
+        for (Slot slot : slots) {
+            if (slot.download != NULL) {
+                clWaitForEvents(slot.download);
+                clReleaseEvent(slot.download);
+            }
+            slot.free();
+        }
+        context.releaseCommandQueue(uploadQueue);
+        context.releaseCommandQueue(computeQueue);
+        context.releaseCommandQueue(downloadQueue);
+    }
+
+    public String toString() {
+        return String.format("Stream Pipeline [%d slots x %d bytes]", slots.length, chunkBytes);
+    }
+}
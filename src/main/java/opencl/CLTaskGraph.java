@@ -0,0 +1,218 @@
+package opencl;
+
+import static org.lwjgl.opencl.CL10.CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE;
+import static org.lwjgl.opencl.CL10.clEnqueueReadBuffer;
+import static org.lwjgl.opencl.CL10.clEnqueueWriteBuffer;
+import static org.lwjgl.opencl.CL10.clFlush;
+import static org.lwjgl.opencl.CL10.clReleaseEvent;
+import static org.lwjgl.opencl.InfoUtil.checkCLError;
+import static org.lwjgl.system.MemoryStack.stackPush;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Graph of device commands with explicit data dependencies.
+ *
+ * Nodes are added after the nodes they depend on, so insertion order is
+ * already a topological order. On submission every node waits only on the
+ * events of its own dependencies, so independent branches may run at the
+ * same time. Devices with out-of-order queue support get a single
+ * out-of-order queue; elsewhere nodes are spread over several in-order
+ * queues. A node continues on the queue of its first dependency that no
+ * other node has continued yet, and otherwise takes the next queue round
+ * robin, so siblings such as two consumers of one write do not serialize
+ * behind each other. The wait list orders it after dependencies on other
+ * queues.
+ *
+ * A graph may be submitted repeatedly. Kernel nodes copy their
+ * {@link CLKernel}'s arguments when added, so one kernel may back several
+ * nodes, but they bind them on the shared kernel at submission, so a graph
+ * must not be submitted from several threads at once.
+ */
+public class CLTaskGraph implements AutoCloseable {
+    @FunctionalInterface
+    public interface Command {
+        /** Enqueues the command on {@code queue} after {@code waitList}, returning its event through {@code event}. */
+        void enqueue(long queue, PointerBuffer waitList, PointerBuffer event);
+    }
+
+    public final class Node {
+        private final String name;
+        private final Command command;
+        private final Node[] dependencies;
+        private final int index;
+        private final boolean profiled;
+        private final long bytes;
+        private boolean hasDependents;
+
+        private Node(String name, Command command, Node[] dependencies, int index, boolean profiled, long bytes) {
+            this.name = name;
+            this.command = command;
+            this.dependencies = dependencies;
+            this.index = index;
+            this.profiled = profiled;
+            this.bytes = bytes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String toString() {
+            return String.format("Node %s <- %s", name, Arrays.toString(Arrays.stream(dependencies).map(Node::getName).toArray()));
+        }
+    }
+
+    private final CLContext context;
+    private final long[] queues;
+    private final List<Node> nodes = new ArrayList<>();
+
+    public CLTaskGraph(CLContext context) {
+        this(context, 4);
+    }
+
+    /** @param inOrderQueues number of queues to spread branches over when out-of-order execution is unsupported */
+    public CLTaskGraph(CLContext context, int inOrderQueues) {
+        this.context = context;
+        if (context.getDevice().supportsOutOfOrderQueue()) {
+            this.queues = new long[] { context.createCommandQueue(CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE) };
+        } else {
+            this.queues = new long[inOrderQueues];
+            for (int i = 0; i < inOrderQueues; i++) {
+                queues[i] = context.createCommandQueue(0);
+            }
+        }
+    }
+
+    public Node add(String name, Command command, Node... dependencies) {
+        return add(name, command, false, 0, dependencies);
+    }
+
+    /**
+     * @param profiled whether {@code command} records itself with the context's {@link CLProfiler}
+     * @param bytes bytes moved by {@code command}, for the profiler
+     */
+    private Node add(String name, Command command, boolean profiled, long bytes, Node... dependencies) {
+        for (Node dependency : dependencies) {
+            if (nodes.get(dependency.index) != dependency) {
+                throw new IllegalArgumentException(String.format("%s belongs to another graph", dependency.name));
+            }
+            dependency.hasDependents = true;
+        }
+
+        Node node = new Node(name, command, dependencies.clone(), nodes.size(), profiled, bytes);
+        nodes.add(node);
+        return node;
+    }
+
+    public Node write(String name, CLBuffer buffer, IntBuffer values, Node... dependencies) {
+        return add(name, (queue, waitList, event) ->
+                checkCLError(clEnqueueWriteBuffer(queue, buffer.getBufferID(), false, 0, values, waitList, event)),
+                false, 4L*values.remaining(), dependencies);
+    }
+
+    public Node read(String name, CLBuffer buffer, IntBuffer values, Node... dependencies) {
+        return add(name, (queue, waitList, event) ->
+                checkCLError(clEnqueueReadBuffer(queue, buffer.getBufferID(), false, 0, values, waitList, event)),
+                false, 4L*values.remaining(), dependencies);
+    }
+
+    /**
+     * Adds a launch of {@code kernel} with the arguments it holds now, which
+     * must all be scalars, device buffers or local memory. The kernel may be
+     * rebound and added again for other nodes. The launch is profiled under
+     * the kernel's name by its program, not under {@code name}.
+     */
+    public Node kernel(String name, CLKernel kernel, long globalSize, Node... dependencies) {
+        CLKernel.Arguments arguments = kernel.snapshot();
+        return add(name, (queue, waitList, event) -> kernel.restore(arguments).enqueue(queue, globalSize, waitList, event),
+                true, 0, dependencies);
+    }
+
+    public List<Node> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    /** Enqueues every node and returns a future completed when all of them have finished. */
+    public CompletableFuture<Void> submit() {
+        long[] events = new long[nodes.size()];
+        int[] assigned = new int[nodes.size()];
+        boolean[] continued = new boolean[nodes.size()];
+        int nextQueue = 0;
+        List<CompletableFuture<Void>> sinks = new ArrayList<>();
+        CLProfiler profiler = context.getProfiler();
+
+        try (MemoryStack stack = stackPush()) {
+            PointerBuffer event = stack.mallocPointer(1);
+            for (Node node : nodes) {
+                int queue = -1;
+                for (Node dependency : node.dependencies) {
+                    if (!continued[dependency.index]) {
+                        continued[dependency.index] = true;
+                        queue = assigned[dependency.index];
+                        break;
+                    }
+                }
+                if (queue < 0) {
+                    queue = nextQueue;
+                    nextQueue = (nextQueue + 1) % queues.length;
+                }
+                assigned[node.index] = queue;
+
+                PointerBuffer waitList = null;
+                if (node.dependencies.length > 0) {
+                    waitList = stack.mallocPointer(node.dependencies.length);
+                    for (int i = 0; i < node.dependencies.length; i++) {
+                        waitList.put(i, events[node.dependencies[i].index]);
+                    }
+                }
+
+                node.command.enqueue(queues[queue], waitList, event);
+                events[node.index] = event.get(0);
+                if (profiler != null && !node.profiled) {
+                    profiler.record(node.name, node.bytes, events[node.index]);
+                }
+            }
+        }
+
+        for (long queue : queues) {
+            clFlush(queue);
+        }
+
+        for (Node node : nodes) {
+            if (node.hasDependents) {
+                clReleaseEvent(events[node.index]);
+            } else {
+                sinks.add(CLEvents.whenComplete(events[node.index]));
+            }
+        }
+        return CompletableFuture.allOf(sinks.toArray(new CompletableFuture<?>[0]));
+    }
+
+    @Override
+    public void close() {
+        for (long queue : queues) {
+            context.releaseCommandQueue(queue);
+        }
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(String.format("Task Graph [%d nodes, %s]", nodes.size(),
+                queues.length == 1 && context.getDevice().supportsOutOfOrderQueue() ? "out-of-order queue" : queues.length + " in-order queues"));
+        for (Node node : nodes) {
+            sb.append("\n  ").append(node);
+        }
+
+        return sb.toString();
+    }
+}
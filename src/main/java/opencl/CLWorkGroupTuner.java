@@ -0,0 +1,135 @@
+package opencl;
+
+import static org.lwjgl.opencl.CL10.CL_KERNEL_FUNCTION_NAME;
+import static org.lwjgl.opencl.CL10.CL_KERNEL_WORK_GROUP_SIZE;
+import static org.lwjgl.opencl.CL10.clEnqueueNDRangeKernel;
+import static org.lwjgl.opencl.CL10.clFinish;
+import static org.lwjgl.opencl.CL11.CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE;
+import static org.lwjgl.opencl.InfoUtil.getKernelInfoStringASCII;
+import static org.lwjgl.opencl.InfoUtil.getKernelWorkGroupInfoPointer;
+import static org.lwjgl.system.MemoryStack.stackPush;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Picks local work sizes for one-dimensional launches.
+ *
+ * Tuning is opt-in per kernel with {@link CLProgram#enableTuning(String)}.
+ * The first sufficiently large {@link CLKernel#run(long)} or other blocking
+ * launch of such a kernel, see {@link CLProgram#tune(long, long, String, long)},
+ * is timed with the driver's own choice and with every multiple of
+ * {@code CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE} up to
+ * {@code CL_KERNEL_WORK_GROUP_SIZE}, doubling each time. The fastest is
+ * remembered per program and kernel for the rest of the process; programs
+ * are identified by their binary cache key, which covers source, build
+ * options and device.
+ *
+ * Tuning repeats the launch with the arguments already set and waits for
+ * it, so it must only be enabled for kernels that can safely run several
+ * times, i.e. whose outputs are not also inputs. Because global sizes are
+ * padded to a multiple of the local size, kernels must also ignore
+ * work-items past the real length.
+ */
+public class CLWorkGroupTuner {
+    private static final long MIN_TUNING_SIZE = 1 << 16;
+    private static final int ROUNDS = 3;
+    private static final CLWorkGroupTuner instance = new CLWorkGroupTuner();
+
+    private final Map<String, Long> best = new ConcurrentHashMap<>();
+
+    public static CLWorkGroupTuner getInstance() {
+        return instance;
+    }
+
+    /** Returns the tuned local size for {@code key}, or 0, the driver's choice, if it has not been tuned. */
+    public long getLocalSize(String key) {
+        return best.getOrDefault(key, 0L);
+    }
+
+    /**
+     * Returns the local size to launch {@code kernel} with, tuning it first
+     * if {@code key} has no result yet. Launches smaller than the tuning
+     * threshold never trigger tuning and use the driver's choice until a
+     * winner is known. Blocks until the tuning launches have finished.
+     */
+    public long localSize(String key, CLContext context, long queue, long kernel, long globalSize) {
+        Long local = best.get(key);
+        if (local != null) {
+            return local;
+        }
+        if (globalSize < MIN_TUNING_SIZE) {
+            return 0;
+        }
+
+        local = tune(context, queue, kernel, globalSize);
+        best.put(key, local);
+        return local;
+    }
+
+    public static long padGlobalSize(long globalSize, long localSize) {
+        return localSize == 0 ? globalSize : (globalSize + localSize - 1) / localSize * localSize;
+    }
+
+    private long tune(CLContext context, long queue, long kernel, long globalSize) {
+        long device = context.getDevice().getDeviceID();
+        long max = getKernelWorkGroupInfoPointer(kernel, device, CL_KERNEL_WORK_GROUP_SIZE);
+        long multiple = Math.max(getKernelWorkGroupInfoPointer(kernel, device, CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE), 1);
+
+        List<Long> candidates = new ArrayList<>();
+        candidates.add(0L);
+        for (long local = multiple; local <= max; local *= 2) {
+            candidates.add(local);
+        }
+
+        long winner = 0;
+        long winnerTime = Long.MAX_VALUE;
+        for (long local : candidates) {
+            long time = time(context, queue, kernel, globalSize, local);
+            if (time < winnerTime) {
+                winner = local;
+                winnerTime = time;
+            }
+        }
+        return winner;
+    }
+
+    private static long time(CLContext context, long queue, long kernel, long globalSize, long local) {
+        try (MemoryStack stack = stackPush()) {
+            PointerBuffer global = stack.pointers(padGlobalSize(globalSize, local));
+            PointerBuffer localBuffer = local == 0 ? null : stack.pointers(local);
+            String command = context.getProfiler() != null ? getKernelInfoStringASCII(kernel, CL_KERNEL_FUNCTION_NAME) + ".tuning" : null;
+
+            // The first round warms up caches and lazy driver state and is not counted.
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round <= ROUNDS; round++) {
+                long begin = System.nanoTime();
+                PointerBuffer profiled = CLProfiler.event(context, stack, null);
+                if (clEnqueueNDRangeKernel(queue, kernel, 1, null, global, localBuffer, null, profiled) != 0) {
+                    clFinish(queue);
+                    return Long.MAX_VALUE;
+                }
+                CLProfiler.record(context, command, 0, profiled, null);
+                clFinish(queue);
+                if (round > 0) {
+                    best = Math.min(best, System.nanoTime() - begin);
+                }
+            }
+            return best;
+        }
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("Work Group Tuner");
+        best.forEach((key, local) -> sb.append(String.format("\n  %s: %s", key, local == 0 ? "driver" : local)));
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,152 @@
+package opencl.expr;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lazily recorded element-wise expression over int arrays.
+ *
+ * Building an expression only records it; nothing runs until it is
+ * materialized with {@link #evaluate(CLExprEngine)}, which fuses the whole
+ * tree into a single kernel. All arrays in one expression must have the same
+ * length, and using the same array twice reads it only once.
+ */
+public abstract class CLExpr {
+    private static class Input extends CLExpr {
+        final int values[];
+
+        Input(int values[]) {
+            this.values = values;
+        }
+
+        @Override
+        void emit(StringBuilder sb, Map<int[], Integer> inputs, List<Integer> constants) {
+            Integer index = inputs.get(values);
+            if (index == null) {
+                index = inputs.size();
+                inputs.put(values, index);
+            }
+            sb.append("in").append(index).append("[i]");
+        }
+    }
+
+    private static class Constant extends CLExpr {
+        final int value;
+
+        Constant(int value) {
+            this.value = value;
+        }
+
+        @Override
+        void emit(StringBuilder sb, Map<int[], Integer> inputs, List<Integer> constants) {
+            // Constants are kernel arguments, so expressions differing only in them share a program.
+            sb.append("k").append(constants.size());
+            constants.add(value);
+        }
+    }
+
+    private static class Binary extends CLExpr {
+        final String operator;
+        final boolean function;
+        final CLExpr left;
+        final CLExpr right;
+
+        Binary(String operator, boolean function, CLExpr left, CLExpr right) {
+            this.operator = operator;
+            this.function = function;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        void emit(StringBuilder sb, Map<int[], Integer> inputs, List<Integer> constants) {
+            sb.append(function ? operator + "(" : "(");
+            left.emit(sb, inputs, constants);
+            sb.append(function ? ", " : " " + operator + " ");
+            right.emit(sb, inputs, constants);
+            sb.append(")");
+        }
+    }
+
+    private static class Negate extends CLExpr {
+        final CLExpr operand;
+
+        Negate(CLExpr operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        void emit(StringBuilder sb, Map<int[], Integer> inputs, List<Integer> constants) {
+            sb.append("(-");
+            operand.emit(sb, inputs, constants);
+            sb.append(")");
+        }
+    }
+
+    CLExpr() {
+    }
+
+    public static CLExpr of(int values[]) {
+        return new Input(values);
+    }
+
+    public static CLExpr constant(int value) {
+        return new Constant(value);
+    }
+
+    public CLExpr add(CLExpr other) {
+        return new Binary("+", false, this, other);
+    }
+
+    public CLExpr add(int value) {
+        return add(constant(value));
+    }
+
+    public CLExpr sub(CLExpr other) {
+        return new Binary("-", false, this, other);
+    }
+
+    public CLExpr sub(int value) {
+        return sub(constant(value));
+    }
+
+    public CLExpr mul(CLExpr other) {
+        return new Binary("*", false, this, other);
+    }
+
+    public CLExpr mul(int value) {
+        return mul(constant(value));
+    }
+
+    public CLExpr min(CLExpr other) {
+        return new Binary("min", true, this, other);
+    }
+
+    public CLExpr max(CLExpr other) {
+        return new Binary("max", true, this, other);
+    }
+
+    public CLExpr negate() {
+        return new Negate(this);
+    }
+
+    /**
+     * Appends the OpenCL expression for element {@code i}, numbering arrays in
+     * {@code inputs} by identity and collecting scalars in {@code constants}.
+     */
+    abstract void emit(StringBuilder sb, Map<int[], Integer> inputs, List<Integer> constants);
+
+    public int[] evaluate(CLExprEngine engine) {
+        return engine.evaluate(this);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        emit(sb, new IdentityHashMap<>(), new ArrayList<>());
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,108 @@
+package opencl.expr;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import opencl.CLContext;
+import opencl.CLKernel;
+import opencl.CLProgram;
+import opencl.CLSourceProgram;
+
+/**
+ * Materializes {@link CLExpr} trees with one fused kernel each.
+ *
+ * The generated kernel depends only on the shape of the expression: which
+ * operations are applied to which input slots and constant slots. Programs
+ * are cached by that shape, so evaluating the same formula over new arrays or
+ * with new constants reuses the compiled program.
+ */
+public class CLExprEngine implements AutoCloseable {
+    private final CLContext context;
+    private final Map<String, CLProgram> programs = new ConcurrentHashMap<>();
+
+    public CLExprEngine(CLContext context) {
+        this.context = context;
+    }
+
+    public int[] evaluate(CLExpr expr) {
+        Map<int[], Integer> inputs = new IdentityHashMap<>();
+        List<Integer> constants = new ArrayList<>();
+        StringBuilder body = new StringBuilder();
+        expr.emit(body, inputs, constants);
+
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("Expression has no input array.");
+        }
+        int n = inputs.keySet().iterator().next().length;
+        for (int[] input : inputs.keySet()) {
+            if (input.length != n) {
+                throw new IllegalArgumentException("Expression inputs differ in length.");
+            }
+        }
+
+        String source = generate(inputs.size(), constants.size(), body.toString());
+        CLProgram program = programs.computeIfAbsent(source, this::build);
+
+        int result[] = new int[n];
+        try (CLKernel kernel = program.borrowKernel("expr")) {
+            for (Map.Entry<int[], Integer> input : inputs.entrySet()) {
+                kernel.setArg(input.getValue(), input.getKey());
+            }
+            for (int i = 0; i < constants.size(); i++) {
+                kernel.setArg(inputs.size() + i, (int)constants.get(i));
+            }
+            kernel.setOutput(inputs.size() + constants.size(), result)
+                  .setArg(inputs.size() + constants.size() + 1, n)
+                  .run(n);
+        }
+        return result;
+    }
+
+    private static String generate(int inputs, int constants, String body) {
+        StringBuilder sb = new StringBuilder("__kernel void expr(");
+        for (int i = 0; i < inputs; i++) {
+            sb.append(String.format("__global const int *in%d, ", i));
+        }
+        for (int i = 0; i < constants; i++) {
+            sb.append(String.format("const int k%d, ", i));
+        }
+        sb.append("__global int *out, const int n)\n");
+        sb.append("{\n");
+        sb.append("    int i = get_global_id(0);\n");
+        sb.append("\n");
+        sb.append("    if (i < n) {\n");
+        sb.append(String.format("        out[i] = %s;\n", body));
+        sb.append("    }\n");
+        sb.append("}\n");
+
+        return sb.toString();
+    }
+
+    private CLProgram build(String source) {
+        try {
+            return new CLSourceProgram(context, source);
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to build expression kernel:\n" + source, e);
+        }
+    }
+
+    public int getCachedPrograms() {
+        return programs.size();
+    }
+
+    /** Releases the cached programs. The context stays open. */
+    @Override
+    public void close() {
+        for (CLProgram program : programs.values()) {
+            program.close();
+        }
+        programs.clear();
+    }
+
+    public String toString() {
+        return String.format("Expression Engine [%d programs]", programs.size());
+    }
+}
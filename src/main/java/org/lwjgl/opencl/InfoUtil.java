@@ -119,6 +119,27 @@ public final class InfoUtil {
         }
     }
 
+    public static String getKernelInfoStringASCII(long cl_kernel_id, int param_name) {
+        try (MemoryStack stack = stackPush()) {
+            PointerBuffer pp = stack.mallocPointer(1);
+            checkCLError(clGetKernelInfo(cl_kernel_id, param_name, (ByteBuffer)null, pp));
+            int bytes = (int)pp.get(0);
+
+            ByteBuffer buffer = stack.malloc(bytes);
+            checkCLError(clGetKernelInfo(cl_kernel_id, param_name, buffer, null));
+
+            return memASCII(buffer, bytes - 1);
+        }
+    }
+
+    public static long getKernelWorkGroupInfoPointer(long cl_kernel_id, long cl_device_id, int param_name) {
+        try (MemoryStack stack = stackPush()) {
+            PointerBuffer pp = stack.mallocPointer(1);
+            checkCLError(clGetKernelWorkGroupInfo(cl_kernel_id, cl_device_id, param_name, pp, null));
+            return pp.get(0);
+        }
+    }
+
     public static void checkCLError(IntBuffer errcode) {
         checkCLError(errcode.get(errcode.position()));
     }
@@ -0,0 +1,264 @@
+package programs;
+
+import static org.lwjgl.opencl.CL10.CL_MEM_READ_WRITE;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import opencl.CLBuffer;
+import opencl.CLContext;
+import opencl.CLKernel;
+import opencl.CLProgram;
+
+/**
+ * Reductions, prefix sums, stream compaction, histograms and radix sort over
+ * int arrays. Each call uploads its input once, runs every pass on the
+ * calling thread's queue with intermediates left on the device, and reads
+ * only the final result back.
+ */
+public class PrimitivesProgram extends CLProgram {
+    private static final int RADIX_BITS = 4;
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    public PrimitivesProgram(CLContext context) throws Exception {
+        super(context);
+    }
+
+    @Override
+    protected String getSource() {
+        try {
+            return readSource("primitives.cl");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    protected String getBuildOptions() {
+        return super.getBuildOptions() + " -DWG_SIZE=" + groupSize();
+    }
+
+    /**
+     * Returns the fixed local size of every kernel: a power of two up to 256
+     * the device accepts, and at least {@value #RADIX}, as each radix digit
+     * count is kept by its own work-item.
+     */
+    public int groupSize() {
+        long maxWorkGroupSize = context.getDevice().getMaxWorkGroupSize();
+        if (maxWorkGroupSize < RADIX) {
+            throw new IllegalStateException(String.format("Work-groups of %d are smaller than the radix of %d", maxWorkGroupSize, RADIX));
+        }
+        return (int)Math.min(256, Long.highestOneBit(maxWorkGroupSize));
+    }
+
+    public int sum(int[] values) {
+        return values.length == 0 ? 0 : reduce("reduce_sum", values);
+    }
+
+    public int min(int[] values) {
+        if (values.length == 0) {
+            throw new NoSuchElementException("min of an empty array");
+        }
+        return reduce("reduce_min", values);
+    }
+
+    public int max(int[] values) {
+        if (values.length == 0) {
+            throw new NoSuchElementException("max of an empty array");
+        }
+        return reduce("reduce_max", values);
+    }
+
+    /** Returns the exclusive prefix sums of {@code values}: element i is the sum of elements 0 to i-1. */
+    public int[] exclusiveScan(int[] values) {
+        int[] result = new int[values.length];
+        if (values.length == 0) {
+            return result;
+        }
+
+        long queue = context.getQueue();
+        List<CLBuffer> temps = new ArrayList<>();
+        try {
+            CLBuffer buffer = upload(queue, values, temps);
+            enqueueScan(queue, buffer, buffer, values.length, temps);
+            enqueueRead(queue, buffer.getBufferID(), true, result, null, null);
+        } finally {
+            release(temps);
+        }
+
+        return result;
+    }
+
+    /** Returns the non-zero elements of {@code values} in their original order. */
+    public int[] compact(int[] values) {
+        int n = values.length;
+        if (n == 0) {
+            return new int[0];
+        }
+
+        long queue = context.getQueue();
+        List<CLBuffer> temps = new ArrayList<>();
+        try (CLKernel flags = borrowKernel("compact_flags");
+             CLKernel scatter = borrowKernel("compact_scatter")) {
+            CLBuffer in = upload(queue, values, temps);
+            CLBuffer positions = scratch(4L*n, temps);
+            flags.setArg(0, in).setArg(1, positions).setArg(2, n).enqueue(queue, n, null, null);
+            enqueueScan(queue, positions, positions, n, temps);
+
+            int[] last = new int[1];
+            enqueueRead(queue, positions.getBufferID(), true, 4L*(n - 1), last, null, null);
+            int count = last[0] + (values[n - 1] != 0 ? 1 : 0);
+
+            int[] result = new int[count];
+            if (count > 0) {
+                CLBuffer out = scratch(4L*count, temps);
+                scatter.setArg(0, in).setArg(1, positions).setArg(2, out).setArg(3, n).enqueue(queue, n, null, null);
+                enqueueRead(queue, out.getBufferID(), true, result, null, null);
+            }
+            return result;
+        } finally {
+            release(temps);
+        }
+    }
+
+    /**
+     * Counts the occurrences of each value in [0, bins). Other values are
+     * ignored. The bins are accumulated in local memory, which bounds their
+     * number by the device's local memory size.
+     */
+    public int[] histogram(int[] values, int bins) {
+        if (4L*bins > context.getDevice().getLocalMemSize()) {
+            throw new IllegalArgumentException(String.format("%d bins do not fit in %d bytes of local memory", bins, context.getDevice().getLocalMemSize()));
+        }
+
+        int[] counts = new int[bins];
+        if (values.length == 0 || bins == 0) {
+            return counts;
+        }
+
+        long queue = context.getQueue();
+        int groups = Math.min(blocks(values.length), groupSize());
+        List<CLBuffer> temps = new ArrayList<>();
+        try (CLKernel kernel = borrowKernel("histogram")) {
+            CLBuffer in = upload(queue, values, temps);
+            CLBuffer out = upload(queue, counts, temps);
+            kernel.setArg(0, in).setArg(1, out).setArg(2, values.length).setArg(3, bins).setLocalArg(4, 4L*bins)
+                    .enqueue(queue, (long)groups*groupSize(), groupSize(), null, null);
+            enqueueRead(queue, out.getBufferID(), true, counts, null, null);
+        } finally {
+            release(temps);
+        }
+
+        return counts;
+    }
+
+    /**
+     * Sorts {@code values} into ascending order in place with a least
+     * significant digit radix sort, {@value #RADIX_BITS} bits per pass.
+     */
+    public void sort(int[] values) {
+        int n = values.length;
+        if (n < 2) {
+            return;
+        }
+
+        long queue = context.getQueue();
+        int blocks = blocks(n);
+        List<CLBuffer> temps = new ArrayList<>();
+        try (CLKernel count = borrowKernel("radix_count");
+             CLKernel scatter = borrowKernel("radix_scatter")) {
+            CLBuffer keys = upload(queue, values, temps);
+            CLBuffer swap = scratch(4L*n, temps);
+            CLBuffer offsets = scratch(4L*RADIX*blocks, temps);
+
+            for (int shift = 0; shift < 32; shift += RADIX_BITS) {
+                count.setArg(0, keys).setArg(1, offsets).setArg(2, n).setArg(3, shift)
+                        .enqueue(queue, global(n), groupSize(), null, null);
+                enqueueScan(queue, offsets, offsets, RADIX*blocks, temps);
+                scatter.setArg(0, keys).setArg(1, swap).setArg(2, offsets).setArg(3, n).setArg(4, shift)
+                        .enqueue(queue, global(n), groupSize(), null, null);
+
+                CLBuffer sorted = swap;
+                swap = keys;
+                keys = sorted;
+            }
+
+            enqueueRead(queue, keys.getBufferID(), true, values, null, null);
+        } finally {
+            release(temps);
+        }
+    }
+
+    private int reduce(String name, int[] values) {
+        long queue = context.getQueue();
+        int groups = Math.min(blocks(values.length), groupSize());
+        List<CLBuffer> temps = new ArrayList<>();
+        try (CLKernel kernel = borrowKernel(name)) {
+            CLBuffer in = upload(queue, values, temps);
+            CLBuffer partials = scratch(4L*groups, temps);
+            CLBuffer out = scratch(4, temps);
+            kernel.setArg(0, in).setArg(1, partials).setArg(2, values.length)
+                    .enqueue(queue, (long)groups*groupSize(), groupSize(), null, null);
+            kernel.setArg(0, partials).setArg(1, out).setArg(2, groups)
+                    .enqueue(queue, groupSize(), groupSize(), null, null);
+
+            int[] result = new int[1];
+            enqueueRead(queue, out.getBufferID(), true, result, null, null);
+            return result[0];
+        } finally {
+            release(temps);
+        }
+    }
+
+    /**
+     * Enqueues an exclusive scan of the first {@code n} elements of
+     * {@code in} into {@code out}: block-wise scans, then a recursive scan of
+     * the block totals, then a pass adding them back.
+     */
+    private void enqueueScan(long queue, CLBuffer in, CLBuffer out, int n, List<CLBuffer> temps) {
+        int blocks = blocks(n);
+        CLBuffer sums = scratch(4L*blocks, temps);
+
+        try (CLKernel scan = borrowKernel("scan_blocks")) {
+            scan.setArg(0, in).setArg(1, out).setArg(2, sums).setArg(3, n)
+                    .enqueue(queue, global(n), groupSize(), null, null);
+        }
+
+        if (blocks > 1) {
+            enqueueScan(queue, sums, sums, blocks, temps);
+            try (CLKernel add = borrowKernel("scan_add")) {
+                add.setArg(0, out).setArg(1, sums).setArg(2, n)
+                        .enqueue(queue, global(n), groupSize(), null, null);
+            }
+        }
+    }
+
+    private int blocks(int n) {
+        return (n + groupSize() - 1) / groupSize();
+    }
+
+    private long global(int n) {
+        return (long)blocks(n) * groupSize();
+    }
+
+    /** Device buffers stay in {@code temps} until the final blocking read, as queued passes may still use them. */
+    private CLBuffer scratch(long bytes, List<CLBuffer> temps) {
+        CLBuffer buffer = context.getBufferPool().acquire(CL_MEM_READ_WRITE, bytes);
+        temps.add(buffer);
+        return buffer;
+    }
+
+    private CLBuffer upload(long queue, int[] values, List<CLBuffer> temps) {
+        CLBuffer buffer = scratch(4L*values.length, temps);
+        enqueueWrite(queue, buffer.getBufferID(), true, values, null, null);
+        return buffer;
+    }
+
+    private static void release(List<CLBuffer> temps) {
+        for (CLBuffer buffer : temps) {
+            buffer.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package programs;
+
+import static org.lwjgl.system.MemoryUtil.memAllocInt;
+import static org.lwjgl.system.MemoryUtil.memFree;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces many small {@link VecAddProgram#vadd(int[], int[])} calls into
+ * single launches.
+ *
+ * Requests are queued and picked up by a worker thread, which waits up to
+ * {@code maxDelay} for more to arrive or until {@code maxElements} are
+ * gathered. The batch is packed back to back into reusable staging buffers,
+ * added with one launch and scattered back to each caller's future through
+ * the table of offsets. Requests of at least {@code maxElements} gain nothing
+ * from batching and run directly on the calling thread.
+ */
+public class VecAddBatcher implements AutoCloseable {
+    private static class Request {
+        final int a[];
+        final int b[];
+        final CompletableFuture<int[]> result = new CompletableFuture<>();
+
+        Request(int a[], int b[]) {
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    private final VecAddProgram program;
+    private final long maxDelayNanos;
+    private final int maxElements;
+    private final BlockingQueue<Request> pending = new LinkedBlockingQueue<>();
+    private final IntBuffer aStage;
+    private final IntBuffer bStage;
+    private final IntBuffer cStage;
+    private final Thread worker;
+    private volatile boolean closed;
+
+    public VecAddBatcher(VecAddProgram program) {
+        this(program, 200, TimeUnit.MICROSECONDS, 1 << 20);
+    }
+
+    public VecAddBatcher(VecAddProgram program, long maxDelay, TimeUnit unit, int maxElements) {
+        this.program = program;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.maxElements = maxElements;
+        this.aStage = memAllocInt(maxElements);
+        this.bStage = memAllocInt(maxElements);
+        this.cStage = memAllocInt(maxElements);
+        this.worker = new Thread(this::work, "clenum-vadd-batcher");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public CompletableFuture<int[]> vadd(int a[], int b[]) {
+        if (a.length != b.length) {
+            throw new IllegalArgumentException(String.format("Lengths differ: %d and %d.", a.length, b.length));
+        }
+
+        if (a.length == 0) {
+            // Nothing to add, and an empty batch would be an invalid zero-sized transfer.
+            return CompletableFuture.completedFuture(new int[0]);
+        }
+
+        if (a.length >= maxElements) {
+            return CompletableFuture.completedFuture(program.vadd(a, b));
+        }
+
+        Request request = new Request(a, b);
+        pending.add(request);
+        if (closed && pending.remove(request)) {
+            request.result.completeExceptionally(new IllegalStateException("Batcher is closed."));
+        }
+        return request.result;
+    }
+
+    private void work() {
+        List<Request> batch = new ArrayList<>();
+        Request carried = null;
+
+        while (!closed) {
+            try {
+                Request first = carried != null ? carried : pending.take();
+                carried = null;
+                batch.add(first);
+                int elements = first.a.length;
+
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (elements < maxElements) {
+                    Request next = pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    if (elements + next.a.length > maxElements) {
+                        carried = next;
+                        break;
+                    }
+                    batch.add(next);
+                    elements += next.a.length;
+                }
+
+                run(batch, elements);
+            } catch (InterruptedException e) {
+                // Woken by close() while gathering, give the requests back to their callers.
+                for (Request request : batch) {
+                    request.result.completeExceptionally(new IllegalStateException("Batcher is closed."));
+                }
+            } catch (RuntimeException e) {
+                // Fail only this batch, the worker has to keep serving the others.
+                for (Request request : batch) {
+                    request.result.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+
+        if (carried != null) {
+            carried.result.completeExceptionally(new IllegalStateException("Batcher is closed."));
+        }
+    }
+
+    private void run(List<Request> batch, int elements) {
+        int offsets[] = new int[batch.size() + 1];
+        aStage.clear();
+        bStage.clear();
+        for (int i = 0; i < batch.size(); i++) {
+            Request request = batch.get(i);
+            offsets[i] = aStage.position();
+            aStage.put(request.a);
+            bStage.put(request.b);
+        }
+        offsets[batch.size()] = elements;
+        aStage.flip();
+        bStage.flip();
+        cStage.clear().limit(elements);
+
+        program.vadd(aStage, bStage, cStage);
+
+        for (int i = 0; i < batch.size(); i++) {
+            int c[] = new int[offsets[i + 1] - offsets[i]];
+            cStage.position(offsets[i]);
+            cStage.get(c);
+            batch.get(i).result.complete(c);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Request request; (request = pending.poll()) != null; ) {
+            request.result.completeExceptionally(new IllegalStateException("Batcher is closed."));
+        }
+        memFree(aStage);
+        memFree(bStage);
+        memFree(cStage);
+    }
+
+    public String toString() {
+        return String.format("VecAdd Batcher [%d pending, %d us, %d elements]", pending.size(), maxDelayNanos / 1000, maxElements);
+    }
+}
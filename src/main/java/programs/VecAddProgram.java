@@ -0,0 +1,242 @@
+package programs;
+
+import static org.lwjgl.opencl.CL10.*;
+import static org.lwjgl.opencl.CL12.CL_MEM_HOST_NO_ACCESS;
+import static org.lwjgl.opencl.CL12.CL_MEM_HOST_READ_ONLY;
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.system.MemoryUtil.memAllocInt;
+import static org.lwjgl.system.MemoryUtil.memFree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import opencl.CLBuffer;
+import opencl.CLBufferPool;
+import opencl.CLContext;
+import opencl.CLIntBuffer;
+import opencl.CLKernel;
+import opencl.CLMappedFile;
+import opencl.CLProgram;
+import opencl.CLStreamPipeline;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+
+public class VecAddProgram extends CLProgram {
+    public VecAddProgram(CLContext context) throws Exception {
+        super(context);
+        // vadd guards its length and never reads c
+        enableTuning("vadd");
+    }
+
+    @Override
+    protected String getSource() {
+        try {
+            return readSource("add.cl");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int[] vadd(int a[], int b[]) {
+        assert(a.length == b.length);
+
+        int c[] = new int[a.length];
+        try (CLKernel kernel = borrowKernel("vadd")) {
+            kernel.setArg(0, a).setArg(1, b).setOutput(2, c).setArg(3, a.length).run(workItems(a.length));
+        }
+
+        return c;
+    }
+
+    /** Adds the remaining elements of three equally sized direct buffers. */
+    public void vadd(IntBuffer a, IntBuffer b, IntBuffer c) {
+        assert(a.remaining() == b.remaining() && a.remaining() == c.remaining());
+
+        try (CLKernel kernel = borrowKernel("vadd")) {
+            kernel.setArg(0, a).setArg(1, b).setOutput(2, c).setArg(3, a.remaining()).run(workItems(a.remaining()));
+        }
+    }
+
+    public CompletableFuture<int[]> vaddAsync(int a[], int b[]) {
+        assert(a.length == b.length);
+
+        if (a.length == 0) {
+            return CompletableFuture.completedFuture(new int[0]);
+        }
+
+        long commandQueue = this.context.getQueue();
+        CLBufferPool pool = this.context.getBufferPool();
+        // device and host buffers of a, b and c, released once the read completes or enqueueing fails
+        CLBuffer clBuffers[] = new CLBuffer[3];
+        IntBuffer buffers[] = new IntBuffer[3];
+
+        long readEvent;
+        try (MemoryStack stack = stackPush()) {
+            PointerBuffer aWriteEvent = stack.callocPointer(1);
+            PointerBuffer bWriteEvent = stack.callocPointer(1);
+            PointerBuffer kernelEvent = stack.callocPointer(1);
+            PointerBuffer cReadEvent = stack.callocPointer(1);
+
+            try {
+                clBuffers[0] = pool.acquire(CL_MEM_READ_ONLY, 4L*a.length);
+                clBuffers[1] = pool.acquire(CL_MEM_READ_ONLY, 4L*b.length);
+                clBuffers[2] = pool.acquire(CL_MEM_WRITE_ONLY, 4L*a.length);
+                buffers[0] = memAllocInt(a.length).put(a);
+                buffers[1] = memAllocInt(b.length).put(b);
+                buffers[2] = memAllocInt(a.length);
+                buffers[0].flip();
+                buffers[1].flip();
+
+                enqueueWrite(commandQueue, clBuffers[0].getBufferID(), false, buffers[0], null, aWriteEvent);
+                enqueueWrite(commandQueue, clBuffers[1].getBufferID(), false, buffers[1], null, bWriteEvent);
+
+                enqueueVADD(commandQueue, clBuffers[0].getBufferID(), clBuffers[1].getBufferID(), clBuffers[2].getBufferID(), a.length,
+                        stack.pointers(aWriteEvent.get(0), bWriteEvent.get(0)), kernelEvent);
+                enqueueRead(commandQueue, clBuffers[2].getBufferID(), false, buffers[2], stack.pointers(kernelEvent.get(0)), cReadEvent);
+                readEvent = cReadEvent.get(0);
+            } catch (RuntimeException e) {
+                // commands enqueued before the failure may still use the buffers
+                clFinish(commandQueue);
+                if (cReadEvent.get(0) != 0) {
+                    clReleaseEvent(cReadEvent.get(0));
+                }
+                release(clBuffers, buffers);
+
+                CompletableFuture<int[]> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            } finally {
+                for (PointerBuffer event : new PointerBuffer[] { aWriteEvent, bWriteEvent, kernelEvent }) {
+                    if (event.get(0) != 0) {
+                        clReleaseEvent(event.get(0));
+                    }
+                }
+            }
+        }
+
+        return whenComplete(commandQueue, readEvent).handle((__, error) -> {
+            try {
+                if (error != null) {
+                    throw new CompletionException(error);
+                }
+                int c[] = new int[buffers[2].capacity()];
+                buffers[2].get(c);
+                return c;
+            } finally {
+                release(clBuffers, buffers);
+            }
+        });
+    }
+
+    private static void release(CLBuffer clBuffers[], IntBuffer buffers[]) {
+        for (IntBuffer buffer : buffers) {
+            if (buffer != null) {
+                memFree(buffer);
+            }
+        }
+        for (CLBuffer buffer : clBuffers) {
+            if (buffer != null) {
+                buffer.close();
+            }
+        }
+    }
+
+    /**
+     * Adds two streams of native byte order ints chunk by chunk, so the inputs
+     * may be larger than device memory. Returns the number of ints written.
+     */
+    public long vaddStream(ReadableByteChannel a, ReadableByteChannel b, WritableByteChannel c) throws IOException {
+        try (CLStreamPipeline pipeline = new CLStreamPipeline(this.context, 2)) {
+            return pipeline.run(new CLStreamPipeline.Source[] { a::read, b::read }, c::write, this::enqueueChunk);
+        }
+    }
+
+    public long vaddStream(ByteBuffer a, ByteBuffer b, ByteBuffer c) throws IOException {
+        try (CLStreamPipeline pipeline = new CLStreamPipeline(this.context, 2)) {
+            return pipeline.run(new CLStreamPipeline.Source[] { CLStreamPipeline.source(a), CLStreamPipeline.source(b) },
+                    CLStreamPipeline.sink(c), this::enqueueChunk);
+        }
+    }
+
+    /**
+     * Adds two mapped files of ints into a third. CPU devices work on the
+     * mapped pages in place through {@code CL_MEM_USE_HOST_PTR} buffers;
+     * other devices stream page-aligned chunks straight from and to the
+     * mappings. Returns the number of ints added.
+     *
+     * While a chunk is wrapped the host must not touch the mapped pages: the
+     * input buffers are created {@code CL_MEM_HOST_NO_ACCESS} and the output
+     * {@code CL_MEM_HOST_READ_ONLY}, read back only by
+     * {@link CLMappedFile#synchronize(CLContext, long, CLBuffer)}, on
+     * devices with OpenCL 1.2.
+     */
+    public long vaddMapped(CLMappedFile a, CLMappedFile b, CLMappedFile c) throws IOException {
+        if (!context.getDevice().isCPU()) {
+            try (CLStreamPipeline pipeline = new CLStreamPipeline(this.context, 2)) {
+                return pipeline.run(new CLMappedFile[] { a, b }, c, this::enqueueChunk);
+            }
+        }
+
+        int step = (int)Math.min(Math.min(CLMappedFile.WINDOW_BYTES, context.getDevice().getMaxMemAllocSize()), Integer.MAX_VALUE)
+                & ~(CLMappedFile.PAGE_BYTES - 1);
+        if (step == 0) {
+            throw new IllegalStateException(String.format("%s cannot allocate a %d byte page", context.getDevice().getName(), CLMappedFile.PAGE_BYTES));
+        }
+        boolean hostAccess = context.getDevice().supportsOpenCL12();
+        long inputFlags = CL_MEM_READ_ONLY | (hostAccess ? CL_MEM_HOST_NO_ACCESS : 0);
+        long outputFlags = CL_MEM_WRITE_ONLY | (hostAccess ? CL_MEM_HOST_READ_ONLY : 0);
+
+        long queue = context.getQueue();
+        long length = Math.min(Math.min(a.size(), b.size()), c.size()) & ~3L;
+        long offset = 0;
+        while (offset < length) {
+            int bytes = (int)Math.min(step, length - offset);
+            try (CLBuffer aBuffer = a.wrap(context, offset, bytes, inputFlags);
+                 CLBuffer bBuffer = b.wrap(context, offset, bytes, inputFlags);
+                 CLBuffer cBuffer = c.wrap(context, offset, bytes, outputFlags)) {
+                bytes = (int)Math.min(Math.min(aBuffer.getSize(), bBuffer.getSize()), cBuffer.getSize());
+                enqueueVADD(queue, aBuffer.getBufferID(), bBuffer.getBufferID(), cBuffer.getBufferID(), bytes / 4, null, null);
+                CLMappedFile.synchronize(context, queue, cBuffer);
+            }
+            offset += bytes;
+        }
+        return offset / 4;
+    }
+
+    private void enqueueChunk(long queue, long[] inputs, long output, int elements, PointerBuffer waitList, PointerBuffer event) {
+        enqueueVADD(queue, inputs[0], inputs[1], output, elements, waitList, event);
+    }
+
+    /** Adds on the queue the three buffers are bound to, after unmapping them. */
+    public void vadd(CLIntBuffer a, CLIntBuffer b, CLIntBuffer c) {
+        assert(a.length() == b.length() && a.length() <= c.length());
+        long queue = a.getQueue();
+        if (b.getQueue() != queue || c.getQueue() != queue) {
+            throw new IllegalArgumentException("Buffers are bound to different queues.");
+        }
+
+        a.unmap();
+        b.unmap();
+        c.unmap();
+
+        enqueueVADD(queue, a.getBufferID(), b.getBufferID(), c.getBufferID(), a.length(), null, null);
+    }
+
+    /** Each work-item of the vectorized kernel covers {@link #getVectorWidth()} elements. */
+    private long workItems(int n) {
+        int width = getVectorWidth();
+        return (n + width - 1) / width;
+    }
+
+    private void enqueueVADD(long queue, long a, long b, long c, int n, PointerBuffer waitList, PointerBuffer event) {
+        try (CLKernel kernel = borrowKernel("vadd")) {
+            kernel.setMemArg(0, a).setMemArg(1, b).setMemArg(2, c).setArg(3, n).enqueue(queue, workItems(n), waitList, event);
+        }
+    }
+}
@@ -1,7 +1,35 @@
-__kernel void vadd(__global const int *a, __global const int *b, __global int *c)
+// VECTOR_WIDTH is passed as a build option from the device's preferred int
+// vector width. With a width above 1 every work-item adds that many
+// consecutive elements, so the global size is n / VECTOR_WIDTH rounded up.
+#ifndef VECTOR_WIDTH
+#define VECTOR_WIDTH 1
+#endif
+
+#define CONCAT_(a, b) a##b
+#define CONCAT(a, b) CONCAT_(a, b)
+
+__kernel void vadd(__global const int *a, __global const int *b, __global int *c, const int n)
 {
+#if VECTOR_WIDTH > 1
+    // get index of the first element of the current vector
+    int v = get_global_id(0);
+    int i = v * VECTOR_WIDTH;
+
+    if (i + VECTOR_WIDTH <= n) {
+        CONCAT(vstore, VECTOR_WIDTH)(CONCAT(vload, VECTOR_WIDTH)(v, a) + CONCAT(vload, VECTOR_WIDTH)(v, b), v, c);
+    } else {
+        // the tail shorter than one vector
+        for (; i < n; i++) {
+            c[i] = a[i] + b[i];
+        }
+    }
+#else
     // get index of current element
     int i = get_global_id(0);
 
-    c[i] = a[i] + b[i];
+    // the global size may be padded up to a multiple of the local size
+    if (i < n) {
+        c[i] = a[i] + b[i];
+    }
+#endif
 }
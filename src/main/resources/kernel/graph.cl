@@ -0,0 +1,20 @@
+// Element-wise kernels for the task graph demo. The global size may be
+// padded, so every work-item checks its index against n.
+
+__kernel void add(__global const int *a, __global const int *b, __global int *c, const int n)
+{
+    int i = get_global_id(0);
+
+    if (i < n) {
+        c[i] = a[i] + b[i];
+    }
+}
+
+__kernel void mul(__global const int *a, __global const int *b, __global int *c, const int n)
+{
+    int i = get_global_id(0);
+
+    if (i < n) {
+        c[i] = a[i] * b[i];
+    }
+}
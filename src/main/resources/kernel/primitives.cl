@@ -0,0 +1,208 @@
+// Parallel primitives over int arrays. Every kernel here runs with a fixed
+// local size of WG_SIZE work-items, passed as a build option (a power of
+// two no larger than the device's maximum work-group size).
+#ifndef WG_SIZE
+#define WG_SIZE 256
+#endif
+
+#define RADIX_BITS 4
+#define RADIX (1 << RADIX_BITS)
+
+#define OP_SUM(a, b) as_int(as_uint(a) + as_uint(b))
+#define OP_MIN(a, b) min(a, b)
+#define OP_MAX(a, b) max(a, b)
+
+// Exclusive prefix sum of x over the work-group. Every work-item must call
+// it; the sum of all x is returned through total.
+int group_scan(int x, __local int *scratch, int *total)
+{
+    int lid = get_local_id(0);
+
+    scratch[lid] = x;
+    barrier(CLK_LOCAL_MEM_FENCE);
+    for (int offset = 1; offset < WG_SIZE; offset <<= 1) {
+        int y = lid >= offset ? scratch[lid - offset] : 0;
+        barrier(CLK_LOCAL_MEM_FENCE);
+        scratch[lid] += y;
+        barrier(CLK_LOCAL_MEM_FENCE);
+    }
+
+    int inclusive = scratch[lid];
+    *total = scratch[WG_SIZE - 1];
+    barrier(CLK_LOCAL_MEM_FENCE);
+    return inclusive - x;
+}
+
+// Each work-group folds a grid-strided share of the input into one partial
+// result, so a second launch with a single group finishes the reduction.
+#define REDUCE(NAME, OP, IDENTITY)                                                  \
+__kernel __attribute__((reqd_work_group_size(WG_SIZE, 1, 1)))                       \
+void NAME(__global const int *in, __global int *out, const int n)                   \
+{                                                                                   \
+    __local int scratch[WG_SIZE];                                                   \
+    int lid = get_local_id(0);                                                      \
+    int acc = IDENTITY;                                                             \
+                                                                                    \
+    for (int i = get_global_id(0); i < n; i += get_global_size(0)) {                \
+        acc = OP(acc, in[i]);                                                       \
+    }                                                                               \
+    scratch[lid] = acc;                                                             \
+    barrier(CLK_LOCAL_MEM_FENCE);                                                   \
+                                                                                    \
+    for (int s = WG_SIZE / 2; s > 0; s >>= 1) {                                     \
+        if (lid < s) {                                                              \
+            scratch[lid] = OP(scratch[lid], scratch[lid + s]);                      \
+        }                                                                           \
+        barrier(CLK_LOCAL_MEM_FENCE);                                               \
+    }                                                                               \
+                                                                                    \
+    if (lid == 0) {                                                                 \
+        out[get_group_id(0)] = scratch[0];                                          \
+    }                                                                               \
+}
+
+REDUCE(reduce_sum, OP_SUM, 0)
+REDUCE(reduce_min, OP_MIN, INT_MAX)
+REDUCE(reduce_max, OP_MAX, INT_MIN)
+
+// First pass of a scan: each group scans its block of WG_SIZE elements and
+// writes the block total to sums. in and out may be the same buffer.
+__kernel __attribute__((reqd_work_group_size(WG_SIZE, 1, 1)))
+void scan_blocks(__global const int *in, __global int *out, __global int *sums, const int n)
+{
+    __local int scratch[WG_SIZE];
+    int i = get_global_id(0);
+    int total;
+
+    int prefix = group_scan(i < n ? in[i] : 0, scratch, &total);
+    if (i < n) {
+        out[i] = prefix;
+    }
+    if (get_local_id(0) == 0) {
+        sums[get_group_id(0)] = total;
+    }
+}
+
+// Last pass of a scan: adds the scanned block totals to every block.
+__kernel __attribute__((reqd_work_group_size(WG_SIZE, 1, 1)))
+void scan_add(__global int *out, __global const int *sums, const int n)
+{
+    int i = get_global_id(0);
+
+    if (i < n) {
+        out[i] += sums[get_group_id(0)];
+    }
+}
+
+__kernel void compact_flags(__global const int *in, __global int *flags, const int n)
+{
+    int i = get_global_id(0);
+
+    if (i < n) {
+        flags[i] = in[i] != 0;
+    }
+}
+
+// positions holds the exclusive scan of the flags written above.
+__kernel void compact_scatter(__global const int *in, __global const int *positions, __global int *out, const int n)
+{
+    int i = get_global_id(0);
+
+    if (i < n && in[i] != 0) {
+        out[positions[i]] = in[i];
+    }
+}
+
+// Counts values in [0, bins) into a per-group histogram in local memory and
+// merges it into the global one, which must start zeroed.
+__kernel __attribute__((reqd_work_group_size(WG_SIZE, 1, 1)))
+void histogram(__global const int *in, __global int *counts, const int n, const int bins, __local int *local_counts)
+{
+    int lid = get_local_id(0);
+
+    for (int b = lid; b < bins; b += WG_SIZE) {
+        local_counts[b] = 0;
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    for (int i = get_global_id(0); i < n; i += get_global_size(0)) {
+        int v = in[i];
+        if (v >= 0 && v < bins) {
+            atomic_inc(&local_counts[v]);
+        }
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    for (int b = lid; b < bins; b += WG_SIZE) {
+        if (local_counts[b] != 0) {
+            atomic_add(&counts[b], local_counts[b]);
+        }
+    }
+}
+
+// Flipping the sign bit makes unsigned digit order match signed int order.
+inline int radix_digit(int v, int shift)
+{
+    return ((as_uint(v) ^ 0x80000000u) >> shift) & (RADIX - 1);
+}
+
+// Radix sort pass 1: per-block digit counts, stored digit-major
+// (counts[digit * blocks + block]) so that their exclusive scan is the
+// output offset of every digit in every block.
+__kernel __attribute__((reqd_work_group_size(WG_SIZE, 1, 1)))
+void radix_count(__global const int *in, __global int *counts, const int n, const int shift)
+{
+    __local int local_counts[RADIX];
+    int lid = get_local_id(0);
+    int i = get_global_id(0);
+
+    if (lid < RADIX) {
+        local_counts[lid] = 0;
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    if (i < n) {
+        atomic_inc(&local_counts[radix_digit(in[i], shift)]);
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    if (lid < RADIX) {
+        counts[lid * get_num_groups(0) + get_group_id(0)] = local_counts[lid];
+    }
+}
+
+// Radix sort pass 2: stable scatter. Every work-item holds a one-hot digit
+// flag packed as sixteen 16-bit counters, two per word, and a single scan of
+// those words over the block is a running digit histogram: its inclusive
+// value at an element's digit is that element's rank among equal digits, plus
+// one. Counters cannot carry into each other, as no count exceeds WG_SIZE.
+__kernel __attribute__((reqd_work_group_size(WG_SIZE, 1, 1)))
+void radix_scatter(__global const int *in, __global int *out, __global const int *offsets, const int n, const int shift)
+{
+    __local uint histogram[WG_SIZE][RADIX / 2];
+    uint preceding[RADIX / 2];
+    int lid = get_local_id(0);
+    int i = get_global_id(0);
+    int v = i < n ? in[i] : 0;
+    int digit = i < n ? radix_digit(v, shift) : RADIX;
+
+    for (int k = 0; k < RADIX / 2; k++) {
+        histogram[lid][k] = digit / 2 == k ? 1u << (16 * (digit & 1)) : 0;
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+    for (int offset = 1; offset < WG_SIZE; offset <<= 1) {
+        for (int k = 0; k < RADIX / 2; k++) {
+            preceding[k] = lid >= offset ? histogram[lid - offset][k] : 0;
+        }
+        barrier(CLK_LOCAL_MEM_FENCE);
+        for (int k = 0; k < RADIX / 2; k++) {
+            histogram[lid][k] += preceding[k];
+        }
+        barrier(CLK_LOCAL_MEM_FENCE);
+    }
+
+    if (i < n) {
+        int rank = ((histogram[lid][digit / 2] >> (16 * (digit & 1))) & 0xffff) - 1;
+        out[offsets[digit * get_num_groups(0) + get_group_id(0)] + rank] = v;
+    }
+}